@@ -0,0 +1,93 @@
+package benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graphics.ImageUtil;
+
+/*
+ * ImageUtil's per-sprite work on square ARGB images, rendered headless.
+ *
+ * Images are generated from a fixed seed: a quarter transparent, half white
+ * and the rest random colours, roughly like a sprite template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageUtilBenchmark {
+
+	@Param({ "32", "256" })
+	public int size;
+
+	private BufferedImage image;
+	private BufferedImage canvas;
+	private Graphics graphics;
+
+	@Setup
+	public void setup() {
+		image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Random random = new Random(42);
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				int kind = random.nextInt(4);
+				if (kind == 0) {
+					image.setRGB(x, y, 0);
+				} else if (kind == 3) {
+					image.setRGB(x, y, 0xFF000000 | random.nextInt(0xFFFFFF));
+				} else {
+					image.setRGB(x, y, -1);
+				}
+			}
+		}
+		canvas = new BufferedImage(size * 2, size * 2, BufferedImage.TYPE_INT_ARGB);
+		graphics = canvas.createGraphics();
+	}
+
+	@TearDown
+	public void tearDown() {
+		graphics.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage rotate() {
+		return ImageUtil.rotate(image, 45, size, size);
+	}
+
+	@Benchmark
+	public boolean drawImage() {
+		return ImageUtil.drawImage(graphics, image, 45, 0, 0);
+	}
+
+	/*
+	 * Fills with white, so every white pixel is rewritten on each call
+	 * while the image stays the same between calls.
+	 */
+	@Benchmark
+	public BufferedImage fillWhiteWithColor() {
+		return ImageUtil.fillWhiteWithColor(image, Color.WHITE);
+	}
+
+	@Benchmark
+	public boolean[][] getVisiblePixels() {
+		return ImageUtil.getVisiblePixels(image);
+	}
+}
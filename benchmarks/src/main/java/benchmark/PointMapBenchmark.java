@@ -0,0 +1,120 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dataStorage.ChunkedPointMap;
+import dataStorage.PointMap;
+import dataStorage.PointVisitor;
+
+/*
+ * In memory PointMap operations at several map sizes, on the default hash
+ * store and on the chunked store.
+ *
+ * Entries fill a square about twice their number in area, so the map is half
+ * full, like a partly explored world. Keys used by get, put and remove are
+ * picked from the entries with a fixed seed, so every run touches the same cells.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class PointMapBenchmark {
+
+	/*
+	 * number of keys cycled through by get, put and remove, a power of two.
+	 */
+	private static final int KEYS = 4096;
+
+	@Param({ "1000", "100000", "1000000" })
+	public int size;
+
+	@Param({ "hash", "chunked" })
+	public String store;
+
+	private PointMap<Integer> map;
+	private int[] keyX;
+	private int[] keyY;
+	private int next;
+
+	@Setup
+	public void setup() {
+		map = store.equals("chunked") ? new ChunkedPointMap<Integer>() : new PointMap<Integer>();
+		Random random = new Random(42);
+		int side = (int) Math.ceil(Math.sqrt(size * 2.0));
+		int[] xs = new int[size];
+		int[] ys = new int[size];
+		int filled = 0;
+		while (filled < size) {
+			int x = random.nextInt(side) - side / 2;
+			int y = random.nextInt(side) - side / 2;
+			if (map.get(x, y) == null) {
+				map.put(x, y, filled);
+				xs[filled] = x;
+				ys[filled] = y;
+				filled++;
+			}
+		}
+		keyX = new int[KEYS];
+		keyY = new int[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			int pick = random.nextInt(size);
+			keyX[i] = xs[pick];
+			keyY[i] = ys[pick];
+		}
+	}
+
+	@Benchmark
+	public Integer get() {
+		int i = next++ & (KEYS - 1);
+		return map.get(keyX[i], keyY[i]);
+	}
+
+	/*
+	 * Replaces an existing entry, so the map keeps its size.
+	 */
+	@Benchmark
+	public void put() {
+		int i = next++ & (KEYS - 1);
+		map.put(keyX[i], keyY[i], i);
+	}
+
+	/*
+	 * Removes an entry and puts it back, so the map keeps its size.
+	 */
+	@Benchmark
+	public void removeAndPut() {
+		int i = next++ & (KEYS - 1);
+		Integer value = map.remove(keyX[i], keyY[i]);
+		map.put(keyX[i], keyY[i], value);
+	}
+
+	/*
+	 * Visits every entry once.
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void iterate(final Blackhole blackhole) {
+		map.forEach(new PointVisitor<Integer>() {
+			@Override
+			public void visit(int x, int y, Integer value) {
+				blackhole.consume(value);
+			}
+		});
+	}
+}
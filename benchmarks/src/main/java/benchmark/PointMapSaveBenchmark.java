@@ -0,0 +1,136 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dataStorage.BinaryCodec;
+import dataStorage.FilePointArchive;
+import dataStorage.PointMap;
+import dataStorage.RegionPointArchive;
+import dataStorage.SerialCodec;
+
+/*
+ * Saving and loading a PointMap through each archive and codec.
+ * Each operation covers a whole block of entries, scores are per block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PointMapSaveBenchmark {
+
+	/*
+	 * A map whose block is saved once, in a folder of its own.
+	 */
+	@State(Scope.Thread)
+	public static class Saved {
+
+		/*
+		 * width of the square block of entries saved and loaded.
+		 */
+		@Param({ "32" })
+		public int side;
+
+		@Param({ "file", "region" })
+		public String archive;
+
+		@Param({ "serial", "binary" })
+		public String codec;
+
+		File folder;
+		PointMap<String> map;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			folder = TempFolder.create("pointmap");
+			map = new PointMap<String>();
+			map.setArchive(archive.equals("region") ? new RegionPointArchive(folder.getPath())
+					: new FilePointArchive(folder.getPath()));
+			map.setCodec(codec.equals("binary") ? new BinaryCodec() : new SerialCodec());
+			fill();
+			map.saveMap();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			map.getArchive().close();
+			TempFolder.delete(folder);
+		}
+
+		void fill() {
+			for (int y = 0; y < side; y++) {
+				for (int x = 0; x < side; x++) {
+					map.put(x, y, "tile " + x + ", " + y);
+				}
+			}
+		}
+
+		void drop() {
+			for (int y = 0; y < side; y++) {
+				for (int x = 0; x < side; x++) {
+					map.remove(x, y);
+				}
+			}
+		}
+	}
+
+	/*
+	 * The block is in memory before every call.
+	 */
+	public static class InMemory extends Saved {
+		@Setup(Level.Invocation)
+		public void before() {
+			fill();
+		}
+	}
+
+	/*
+	 * The block is only on disk before every call.
+	 */
+	public static class OnDisk extends Saved {
+		@Setup(Level.Invocation)
+		public void before() {
+			drop();
+		}
+	}
+
+	/*
+	 * Saves and unloads the block.
+	 */
+	@Benchmark
+	public void saveMap(InMemory state) {
+		state.map.saveMap();
+	}
+
+	/*
+	 * Loads the block back into memory.
+	 */
+	@Benchmark
+	public int load(OnDisk state) {
+		int loaded = 0;
+		for (int y = 0; y < state.side; y++) {
+			for (int x = 0; x < state.side; x++) {
+				if (state.map.load(x, y)) {
+					loaded++;
+				}
+			}
+		}
+		return loaded;
+	}
+}
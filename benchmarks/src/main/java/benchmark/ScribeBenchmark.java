@@ -0,0 +1,94 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dataStorage.BinaryCodec;
+import dataStorage.Scribe;
+import dataStorage.SerialCodec;
+
+/*
+ * Scribe.saveObject and loadObject of an int array, through each codec.
+ *
+ * Scribe prints a line for every save and load, standard out is sent nowhere
+ * for the benchmark so the console does not set the pace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ScribeBenchmark {
+
+	/*
+	 * number of ints in the saved object.
+	 */
+	@Param({ "100", "100000" })
+	public int length;
+
+	@Param({ "serial", "binary" })
+	public String codec;
+
+	private File folder;
+	private Scribe scribe;
+	private int[] object;
+	private PrintStream out;
+
+	@Setup
+	public void setup() throws IOException {
+		out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+		folder = TempFolder.create("scribe");
+		scribe = new Scribe();
+		scribe.setSaveFolder(folder.getPath() + "/");
+		scribe.setCodec(codec.equals("binary") ? new BinaryCodec() : new SerialCodec());
+		object = new int[length];
+		Random random = new Random(42);
+		for (int i = 0; i < length; i++) {
+			object[i] = random.nextInt();
+		}
+		scribe.saveObject(object, "loaded");
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.setOut(out);
+		TempFolder.delete(folder);
+	}
+
+	@Benchmark
+	public void saveObject() throws IOException {
+		scribe.saveObject(object, "saved");
+	}
+
+	@Benchmark
+	public Object loadObject() throws IOException, ClassNotFoundException {
+		return scribe.loadObject("loaded");
+	}
+}
@@ -0,0 +1,34 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/*
+ * Scratch folders for the benchmarks that touch the disk.
+ */
+final class TempFolder {
+
+	private TempFolder() {
+	}
+
+	/*
+	 * Creates an empty folder in the system temp folder.
+	 */
+	static File create(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/*
+	 * Deletes a folder and everything inside it.
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
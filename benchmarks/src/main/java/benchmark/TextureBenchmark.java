@@ -0,0 +1,41 @@
+package benchmark;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import graphics.Texture;
+
+/*
+ * Texture.getColor, called once per pixel by the fill functions of ImageUtil.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TextureBenchmark {
+
+	private Texture texture;
+
+	@Setup
+	public void setup() {
+		texture = new Texture(120, 90, 60, 255, 40, 30, 20, 0);
+	}
+
+	@Benchmark
+	public Color getColor() {
+		return texture.getColor();
+	}
+}
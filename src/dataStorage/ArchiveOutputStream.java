@@ -0,0 +1,36 @@
+package dataStorage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Stream returned by ObjectArchive.openOutput(). Closing it saves everything
+ * written under its name, abort() drops it instead, so what was saved under
+ * the name before stays as it was. Either may be called more than once.
+ */
+public abstract class ArchiveOutputStream extends FilterOutputStream {
+
+	protected ArchiveOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/*
+	 * Passes whole arrays on, FilterOutputStream would write them a byte at a time.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	/*
+	 * Saves everything written, replacing what was saved under the name before.
+	 */
+	@Override
+	public abstract void close() throws IOException;
+
+	/*
+	 * Drops everything written without saving it.
+	 */
+	public abstract void abort() throws IOException;
+}
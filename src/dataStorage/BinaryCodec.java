@@ -0,0 +1,712 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Compact binary codec. Every value is written as a one byte tag followed by its
+ * data, with no class descriptors and no reflection on read.
+ *
+ * Boxed primitives, Strings, primitive arrays, String[], int[][], Object[],
+ * ArrayList, HashMap, LinkedHashMap, HashSet and Point are built in.
+ * Other types can be registered with a TypeCodec under a fixed id, which acts as
+ * their schema. Anything else falls back to java serialization for that value only.
+ *
+ * Like java serialization, an object reached twice is written once and later
+ * referred to by handle, so shared objects stay shared and cyclic graphs can
+ * be saved. Boxed primitives and Strings are written by value. A cycle through a
+ * registered type reads back as null, since the type creates its object itself.
+ * Strings and chars are written as their UTF-16 units in modified UTF-8, like
+ * DataOutput.writeUTF, so unpaired surrogates survive.
+ *
+ * Data saved with java serialization (SerialCodec) is still decoded, so existing
+ * saves keep loading after switching codecs.
+ */
+public class BinaryCodec implements Codec {
+
+	private static final int NULL = 0;
+	private static final int TRUE = 1;
+	private static final int FALSE = 2;
+	private static final int BYTE = 3;
+	private static final int SHORT = 4;
+	private static final int CHAR = 5;
+	private static final int INT = 6;
+	private static final int LONG = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int STRING = 10;
+	private static final int BYTE_ARRAY = 11;
+	private static final int INT_ARRAY = 12;
+	private static final int LONG_ARRAY = 13;
+	private static final int DOUBLE_ARRAY = 14;
+	private static final int FLOAT_ARRAY = 15;
+	private static final int BOOLEAN_ARRAY = 16;
+	private static final int SHORT_ARRAY = 17;
+	private static final int CHAR_ARRAY = 18;
+	private static final int STRING_ARRAY = 19;
+	private static final int INT_ARRAY_2D = 20;
+	private static final int OBJECT_ARRAY = 21;
+	private static final int LIST = 22;
+	private static final int MAP = 23;
+	private static final int LINKED_MAP = 24;
+	private static final int SET = 25;
+	private static final int POINT = 26;
+	private static final int REGISTERED = 27;
+	private static final int SERIAL = 28;
+	private static final int REF = 29;
+
+	/*
+	 * first byte of a java serialization stream.
+	 */
+	private static final int SERIAL_MAGIC = 0xAC;
+
+	private final SerialCodec serial = new SerialCodec();
+	private final Map<Class<?>, Registration<?>> byType = new HashMap<Class<?>, Registration<?>>();
+	private final Map<Integer, Registration<?>> byId = new HashMap<Integer, Registration<?>>();
+
+	/*
+	 * Writes and reads one registered type. The order of fields written is the
+	 * type's schema, and must stay the same for saved data to load.
+	 */
+	public interface TypeCodec<T> {
+		void write(T value, Writer out) throws IOException;
+
+		T read(Reader in) throws IOException, ClassNotFoundException;
+	}
+
+	private static final class Registration<T> {
+		final int id;
+		final TypeCodec<T> codec;
+
+		Registration(int id, TypeCodec<T> codec) {
+			this.id = id;
+			this.codec = codec;
+		}
+	}
+
+	/*
+	 * Registers codec for values of exactly type, saved under id.
+	 * Ids must be unique and must not change once data has been saved.
+	 */
+	public synchronized <T> void register(int id, Class<T> type, TypeCodec<T> codec) {
+		if (id < 0) {
+			throw new IllegalArgumentException("Id must not be negative: " + id);
+		}
+		if (byId.containsKey(id) || byType.containsKey(type)) {
+			throw new IllegalArgumentException("Id " + id + " or type " + type.getName() + " already registered");
+		}
+		Registration<T> registration = new Registration<T>(id, codec);
+		byType.put(type, registration);
+		byId.put(id, registration);
+	}
+
+	@Override
+	public byte[] encode(Object value) throws IOException {
+		Writer out = new Writer(64);
+		out.writeObject(value);
+		return out.toByteArray();
+	}
+
+	@Override
+	public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		if (data.length > 0 && (data[0] & 0xFF) == SERIAL_MAGIC) {
+			return serial.decode(data);
+		}
+		Reader in = new Reader(data, 0, data.length);
+		Object value = in.readObject();
+		if (in.position != data.length) {
+			throw new StreamCorruptedException((data.length - in.position) + " bytes left after value");
+		}
+		return value;
+	}
+
+	/*
+	 * Growable output buffer values are encoded into.
+	 */
+	public final class Writer {
+		private byte[] buffer;
+		private int position;
+
+		/*
+		 * handles of the objects written so far, in the order they were begun.
+		 */
+		private IdentityHashMap<Object, Integer> handles;
+
+		private Writer(int capacity) {
+			buffer = new byte[capacity];
+		}
+
+		public void writeByte(int b) {
+			ensure(1);
+			buffer[position++] = (byte) b;
+		}
+
+		public void writeBoolean(boolean b) {
+			writeByte(b ? 1 : 0);
+		}
+
+		/*
+		 * Writes an int in 1 to 5 bytes, small values of either sign are short.
+		 */
+		public void writeVarInt(int v) {
+			writeVarLong(v);
+		}
+
+		/*
+		 * Writes a long in 1 to 10 bytes, small values of either sign are short.
+		 */
+		public void writeVarLong(long v) {
+			ensure(10);
+			long zigzag = (v << 1) ^ (v >> 63);
+			while ((zigzag & ~0x7FL) != 0) {
+				buffer[position++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			buffer[position++] = (byte) zigzag;
+		}
+
+		public void writeInt(int v) {
+			ensure(4);
+			buffer[position++] = (byte) (v >>> 24);
+			buffer[position++] = (byte) (v >>> 16);
+			buffer[position++] = (byte) (v >>> 8);
+			buffer[position++] = (byte) v;
+		}
+
+		public void writeLong(long v) {
+			writeInt((int) (v >>> 32));
+			writeInt((int) v);
+		}
+
+		public void writeFloat(float v) {
+			writeInt(Float.floatToIntBits(v));
+		}
+
+		public void writeDouble(double v) {
+			writeLong(Double.doubleToLongBits(v));
+		}
+
+		public void writeBytes(byte[] bytes) {
+			writeVarInt(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		/*
+		 * Writes the number of chars, then each char in one to three bytes.
+		 */
+		public void writeString(String s) {
+			int length = s.length();
+			writeVarInt(length);
+			ensure(length * 3);
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x01 && c <= 0x7F) {
+					buffer[position++] = (byte) c;
+				} else if (c <= 0x7FF) {
+					buffer[position++] = (byte) (0xC0 | c >> 6);
+					buffer[position++] = (byte) (0x80 | c & 0x3F);
+				} else {
+					buffer[position++] = (byte) (0xE0 | c >> 12);
+					buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+					buffer[position++] = (byte) (0x80 | c & 0x3F);
+				}
+			}
+		}
+
+		/*
+		 * Writes any value, tagged with its type.
+		 */
+		public void writeObject(Object value) throws IOException {
+			if (value == null) {
+				writeByte(NULL);
+				return;
+			}
+			Class<?> type = value.getClass();
+			if (type == Integer.class) {
+				writeByte(INT);
+				writeVarInt((Integer) value);
+			} else if (type == String.class) {
+				writeByte(STRING);
+				writeString((String) value);
+			} else if (type == Boolean.class) {
+				writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (type == Long.class) {
+				writeByte(LONG);
+				writeVarLong((Long) value);
+			} else if (type == Double.class) {
+				writeByte(DOUBLE);
+				writeDouble((Double) value);
+			} else if (type == Float.class) {
+				writeByte(FLOAT);
+				writeFloat((Float) value);
+			} else if (type == Byte.class) {
+				writeByte(BYTE);
+				writeByte((Byte) value);
+			} else if (type == Short.class) {
+				writeByte(SHORT);
+				writeVarInt((Short) value);
+			} else if (type == Character.class) {
+				writeByte(CHAR);
+				writeVarInt((Character) value);
+			} else if (writeRef(value)) {
+				return;
+			} else if (type == Point.class) {
+				writeByte(POINT);
+				writeVarInt(((Point) value).x);
+				writeVarInt(((Point) value).y);
+			} else if (type.isArray()) {
+				writeArray(value);
+			} else if (type == ArrayList.class) {
+				List<?> list = (List<?>) value;
+				writeByte(LIST);
+				writeVarInt(list.size());
+				for (Object element : list) {
+					writeObject(element);
+				}
+			} else if (type == HashMap.class || type == LinkedHashMap.class) {
+				Map<?, ?> map = (Map<?, ?>) value;
+				writeByte(type == HashMap.class ? MAP : LINKED_MAP);
+				writeVarInt(map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet()) {
+					writeObject(entry.getKey());
+					writeObject(entry.getValue());
+				}
+			} else if (type == HashSet.class) {
+				Set<?> set = (Set<?>) value;
+				writeByte(SET);
+				writeVarInt(set.size());
+				for (Object element : set) {
+					writeObject(element);
+				}
+			} else {
+				writeOther(value, type);
+			}
+		}
+
+		private void writeArray(Object value) throws IOException {
+			Class<?> type = value.getClass();
+			if (type == int[].class) {
+				int[] a = (int[]) value;
+				writeByte(INT_ARRAY);
+				writeVarInt(a.length);
+				for (int v : a) {
+					writeVarInt(v);
+				}
+			} else if (type == byte[].class) {
+				writeByte(BYTE_ARRAY);
+				writeBytes((byte[]) value);
+			} else if (type == long[].class) {
+				long[] a = (long[]) value;
+				writeByte(LONG_ARRAY);
+				writeVarInt(a.length);
+				for (long v : a) {
+					writeVarLong(v);
+				}
+			} else if (type == double[].class) {
+				double[] a = (double[]) value;
+				writeByte(DOUBLE_ARRAY);
+				writeVarInt(a.length);
+				for (double v : a) {
+					writeDouble(v);
+				}
+			} else if (type == float[].class) {
+				float[] a = (float[]) value;
+				writeByte(FLOAT_ARRAY);
+				writeVarInt(a.length);
+				for (float v : a) {
+					writeFloat(v);
+				}
+			} else if (type == boolean[].class) {
+				boolean[] a = (boolean[]) value;
+				writeByte(BOOLEAN_ARRAY);
+				writeVarInt(a.length);
+				for (boolean v : a) {
+					writeBoolean(v);
+				}
+			} else if (type == short[].class) {
+				short[] a = (short[]) value;
+				writeByte(SHORT_ARRAY);
+				writeVarInt(a.length);
+				for (short v : a) {
+					writeVarInt(v);
+				}
+			} else if (type == char[].class) {
+				writeByte(CHAR_ARRAY);
+				writeString(new String((char[]) value));
+			} else if (type == String[].class) {
+				String[] a = (String[]) value;
+				writeByte(STRING_ARRAY);
+				writeVarInt(a.length);
+				for (String v : a) {
+					writeObject(v);
+				}
+			} else if (type == int[][].class) {
+				int[][] a = (int[][]) value;
+				writeByte(INT_ARRAY_2D);
+				writeVarInt(a.length);
+				for (int[] v : a) {
+					writeObject(v);
+				}
+			} else if (type == Object[].class) {
+				Object[] a = (Object[]) value;
+				writeByte(OBJECT_ARRAY);
+				writeVarInt(a.length);
+				for (Object v : a) {
+					writeObject(v);
+				}
+			} else {
+				writeOther(value, type);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void writeOther(Object value, Class<?> type) throws IOException {
+			Registration<Object> registration;
+			synchronized (BinaryCodec.this) {
+				registration = (Registration<Object>) byType.get(type);
+			}
+			if (registration != null) {
+				writeByte(REGISTERED);
+				writeVarInt(registration.id);
+				registration.codec.write(value, this);
+			} else {
+				writeByte(SERIAL);
+				writeBytes(serial.encode(value));
+			}
+		}
+
+		/*
+		 * Writes a reference and returns true if value was written before,
+		 * otherwise gives it the next handle and returns false.
+		 */
+		private boolean writeRef(Object value) {
+			if (handles == null) {
+				handles = new IdentityHashMap<Object, Integer>();
+			}
+			Integer handle = handles.get(value);
+			if (handle != null) {
+				writeByte(REF);
+				writeVarInt(handle);
+				return true;
+			}
+			handles.put(value, handles.size());
+			return false;
+		}
+
+		private void ensure(int extra) {
+			if (position + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + extra));
+			}
+		}
+
+		private byte[] toByteArray() {
+			return Arrays.copyOf(buffer, position);
+		}
+	}
+
+	/*
+	 * Reads values back out of encoded bytes.
+	 */
+	public final class Reader {
+		private final byte[] buffer;
+		private final int limit;
+		private int position;
+
+		/*
+		 * objects read so far, indexed by handle.
+		 */
+		private final List<Object> handles = new ArrayList<Object>();
+
+		private Reader(byte[] buffer, int offset, int length) {
+			this.buffer = buffer;
+			position = offset;
+			limit = offset + length;
+		}
+
+		public int readByte() throws IOException {
+			require(1);
+			return buffer[position++];
+		}
+
+		public boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		public int readVarInt() throws IOException {
+			return (int) readVarLong();
+		}
+
+		public long readVarLong() throws IOException {
+			long zigzag = 0;
+			int shift = 0;
+			int b;
+			do {
+				if (shift > 63) {
+					throw new StreamCorruptedException("Malformed variable length number");
+				}
+				b = readByte();
+				zigzag |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		public int readInt() throws IOException {
+			require(4);
+			int v = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+					| (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF);
+			position += 4;
+			return v;
+		}
+
+		public long readLong() throws IOException {
+			return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+		public float readFloat() throws IOException {
+			return Float.intBitsToFloat(readInt());
+		}
+
+		public double readDouble() throws IOException {
+			return Double.longBitsToDouble(readLong());
+		}
+
+		public byte[] readBytes() throws IOException {
+			int length = readLength();
+			require(length);
+			byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+			position += length;
+			return bytes;
+		}
+
+		public String readString() throws IOException {
+			return new String(readChars());
+		}
+
+		/*
+		 * Reads the chars written by Writer.writeString.
+		 */
+		private char[] readChars() throws IOException {
+			char[] chars = new char[readLength()];
+			for (int i = 0; i < chars.length; i++) {
+				require(1);
+				int b = buffer[position++] & 0xFF;
+				if (b < 0x80) {
+					chars[i] = (char) b;
+				} else if ((b & 0xE0) == 0xC0) {
+					chars[i] = (char) ((b & 0x1F) << 6 | continuation());
+				} else if ((b & 0xF0) == 0xE0) {
+					chars[i] = (char) ((b & 0x0F) << 12 | continuation() << 6 | continuation());
+				} else {
+					throw new StreamCorruptedException("Malformed char");
+				}
+			}
+			return chars;
+		}
+
+		private int continuation() throws IOException {
+			require(1);
+			int b = buffer[position++] & 0xFF;
+			if ((b & 0xC0) != 0x80) {
+				throw new StreamCorruptedException("Malformed char");
+			}
+			return b & 0x3F;
+		}
+
+		/*
+		 * Reads any value written by Writer.writeObject.
+		 */
+		public Object readObject() throws IOException, ClassNotFoundException {
+			int tag = readByte() & 0xFF;
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case BYTE:
+				return (byte) readByte();
+			case SHORT:
+				return (short) readVarInt();
+			case CHAR:
+				return (char) readVarInt();
+			case INT:
+				return readVarInt();
+			case LONG:
+				return readVarLong();
+			case FLOAT:
+				return readFloat();
+			case DOUBLE:
+				return readDouble();
+			case STRING:
+				return readString();
+			case POINT:
+				return handle(new Point(readVarInt(), readVarInt()));
+			case REF: {
+				int handle = readVarInt();
+				if (handle < 0 || handle >= handles.size()) {
+					throw new StreamCorruptedException("Bad handle " + handle);
+				}
+				return handles.get(handle);
+			}
+			case LIST: {
+				int n = readLength();
+				List<Object> list = handle(new ArrayList<Object>(n));
+				for (int i = 0; i < n; i++) {
+					list.add(readObject());
+				}
+				return list;
+			}
+			case MAP:
+			case LINKED_MAP: {
+				int n = readLength();
+				Map<Object, Object> map = handle(tag == MAP ? new HashMap<Object, Object>(n * 2)
+						: new LinkedHashMap<Object, Object>(n * 2));
+				for (int i = 0; i < n; i++) {
+					map.put(readObject(), readObject());
+				}
+				return map;
+			}
+			case SET: {
+				int n = readLength();
+				Set<Object> set = handle(new HashSet<Object>(n * 2));
+				for (int i = 0; i < n; i++) {
+					set.add(readObject());
+				}
+				return set;
+			}
+			case REGISTERED: {
+				int id = readVarInt();
+				Registration<?> registration;
+				synchronized (BinaryCodec.this) {
+					registration = byId.get(id);
+				}
+				if (registration == null) {
+					throw new ClassNotFoundException("No type registered under id " + id);
+				}
+				int handle = handles.size();
+				handles.add(null);
+				Object value = registration.codec.read(this);
+				handles.set(handle, value);
+				return value;
+			}
+			case SERIAL:
+				return handle(serial.decode(readBytes()));
+			default:
+				return readArray(tag);
+			}
+		}
+
+		private Object readArray(int tag) throws IOException, ClassNotFoundException {
+			switch (tag) {
+			case BYTE_ARRAY:
+				return handle(readBytes());
+			case CHAR_ARRAY:
+				return handle(readChars());
+			case INT_ARRAY: {
+				int[] a = handle(new int[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readVarInt();
+				}
+				return a;
+			}
+			case LONG_ARRAY: {
+				long[] a = handle(new long[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readVarLong();
+				}
+				return a;
+			}
+			case DOUBLE_ARRAY: {
+				double[] a = handle(new double[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readDouble();
+				}
+				return a;
+			}
+			case FLOAT_ARRAY: {
+				float[] a = handle(new float[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readFloat();
+				}
+				return a;
+			}
+			case BOOLEAN_ARRAY: {
+				boolean[] a = handle(new boolean[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readBoolean();
+				}
+				return a;
+			}
+			case SHORT_ARRAY: {
+				short[] a = handle(new short[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = (short) readVarInt();
+				}
+				return a;
+			}
+			case STRING_ARRAY: {
+				String[] a = handle(new String[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = (String) readObject();
+				}
+				return a;
+			}
+			case INT_ARRAY_2D: {
+				int[][] a = handle(new int[readLength()][]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = (int[]) readObject();
+				}
+				return a;
+			}
+			case OBJECT_ARRAY: {
+				Object[] a = handle(new Object[readLength()]);
+				for (int i = 0; i < a.length; i++) {
+					a[i] = readObject();
+				}
+				return a;
+			}
+			default:
+				throw new StreamCorruptedException("Unknown tag " + tag);
+			}
+		}
+
+		/*
+		 * Gives value the next handle, before anything inside it is read.
+		 */
+		private <T> T handle(T value) {
+			handles.add(value);
+			return value;
+		}
+
+		/*
+		 * Reads a length, checking it against the bytes left so that corrupt data
+		 * cannot make us allocate huge arrays.
+		 */
+		private int readLength() throws IOException {
+			int length = readVarInt();
+			if (length < 0 || length > limit - position) {
+				throw new StreamCorruptedException("Bad length " + length);
+			}
+			return length;
+		}
+
+		private void require(int n) throws IOException {
+			if (n > limit - position) {
+				throw new StreamCorruptedException("Unexpected end of data");
+			}
+		}
+	}
+}
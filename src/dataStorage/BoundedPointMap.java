@@ -0,0 +1,249 @@
+package dataStorage;
+
+/*
+ * PointMap that keeps its memory use within a budget.
+ * Every entry has a weight (1 by default, or given by a weigher, i.e. an estimate
+ * of its size in bytes). When the resident weight goes over the budget, the least
+ * recently used entries are unloaded to disk through the map's archive, and get()
+ * loads an entry back transparently when it is not in memory.
+ *
+ * Hits, misses, evictions and failed evictions are counted. Not thread safe.
+ */
+import java.util.function.ToLongFunction;
+
+public class BoundedPointMap<V> extends PointMap<V> {
+	private final long budget;
+	private final ToLongFunction<? super V> weigher;
+
+	/*
+	 * recency list of resident entries, head is the most recently used.
+	 */
+	private final LongPointStore<Node> nodes;
+	private Node head;
+	private Node tail;
+	private long weight;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long failedEvictions;
+
+	/*
+	 * Entry of the recency list.
+	 */
+	private static final class Node {
+		final int x;
+		final int y;
+		long weight;
+		Node prev;
+		Node next;
+
+		Node(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/*
+	 * Initializes map holding at most maxEntries entries in memory.
+	 */
+	public BoundedPointMap(int maxEntries) {
+		this(new LongPointStore<V>(), maxEntries, new ToLongFunction<Object>() {
+			@Override
+			public long applyAsLong(Object value) {
+				return 1;
+			}
+		});
+	}
+
+	/*
+	 * Initializes map keeping the total weight of entries in memory at most budget,
+	 * weigher gives the weight of a value, i.e. its approximate size in bytes.
+	 */
+	public BoundedPointMap(long budget, ToLongFunction<? super V> weigher) {
+		this(new LongPointStore<V>(), budget, weigher);
+	}
+
+	/*
+	 * Same as above, on top of the given store.
+	 */
+	public BoundedPointMap(PointStore<V> store, long budget, ToLongFunction<? super V> weigher) {
+		super(store);
+		if (budget < 1) {
+			throw new IllegalArgumentException("Budget must be positive: " + budget);
+		}
+		this.budget = budget;
+		this.weigher = weigher;
+		nodes = new LongPointStore<Node>();
+	}
+
+	/*
+	 * Returns the value at x, y, loading it from disk if it is not in memory.
+	 */
+	@Override
+	public V get(int x, int y) {
+		V value = super.get(x, y);
+		if (value != null) {
+			hits++;
+			Node node = nodes.get(x, y);
+			if (node != null) {
+				moveToFront(node);
+			}
+			return value;
+		}
+		misses++;
+		if (load(x, y)) {
+			return super.get(x, y);
+		}
+		return null;
+	}
+
+	/*
+	 * Puts value at x, y as the most recently used entry, then unloads the
+	 * least recently used entries until the map is within its budget.
+	 */
+	@Override
+	public void put(int x, int y, V value) {
+		if (value == null) {
+			remove(x, y);
+			return;
+		}
+		super.put(x, y, value);
+		Node node = nodes.get(x, y);
+		if (node == null) {
+			node = new Node(x, y);
+			nodes.put(x, y, node);
+		} else {
+			unlink(node);
+			weight -= node.weight;
+		}
+		node.weight = weigher.applyAsLong(value);
+		weight += node.weight;
+		linkFirst(node);
+		evict();
+	}
+
+	@Override
+	public V remove(int x, int y) {
+		Node node = nodes.remove(x, y);
+		if (node != null) {
+			unlink(node);
+			weight -= node.weight;
+		}
+		return super.remove(x, y);
+	}
+
+	/*
+	 * Returns the number of get calls answered from memory.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/*
+	 * Returns the number of get calls that were not in memory, whether or not
+	 * they could be loaded from disk.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * Returns the number of entries unloaded to stay within the budget.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/*
+	 * Returns the number of entries that could not be saved when they were to be
+	 * unloaded, and were kept in memory over budget instead.
+	 */
+	public long getFailedEvictions() {
+		return failedEvictions;
+	}
+
+	/*
+	 * Returns the total weight of the entries in memory.
+	 */
+	public long getResidentWeight() {
+		return weight;
+	}
+
+	/*
+	 * Returns the budget the resident weight is kept under.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/*
+	 * Sets all counters back to 0.
+	 */
+	public void resetStats() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		failedEvictions = 0;
+	}
+
+	/*
+	 * Unloads from the back of the recency list until within budget.
+	 * The most recently used entry is always kept, even if it alone is over budget.
+	 * An entry that cannot be saved stays in memory and tracked: it is moved to the
+	 * front, so the next round tries older entries first, and this round stops over
+	 * budget rather than retrying the save.
+	 */
+	private void evict() {
+		while (weight > budget && tail != head) {
+			Node victim = tail;
+			if (unload(victim.x, victim.y)) {
+				evictions++;
+			} else if (super.get(victim.x, victim.y) == null) {
+				//not in the map anymore, nothing to save
+				nodes.remove(victim.x, victim.y);
+				unlink(victim);
+				weight -= victim.weight;
+			} else {
+				failedEvictions++;
+				System.err.println("Could not evict " + victim.x + ", " + victim.y + ", kept in memory");
+				moveToFront(victim);
+				return;
+			}
+		}
+	}
+
+	private void moveToFront(Node node) {
+		if (node != head) {
+			unlink(node);
+			linkFirst(node);
+		}
+	}
+
+	private void linkFirst(Node node) {
+		node.prev = null;
+		node.next = head;
+		if (head != null) {
+			head.prev = node;
+		}
+		head = node;
+		if (tail == null) {
+			tail = node;
+		}
+	}
+
+	private void unlink(Node node) {
+		if (node.prev != null) {
+			node.prev.next = node.next;
+		} else {
+			head = node.next;
+		}
+		if (node.next != null) {
+			node.next.prev = node.prev;
+		} else {
+			tail = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+	}
+}
@@ -0,0 +1,435 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import dataStorage.StorageMetrics.Op;
+
+/*
+ * PointMap for dense worlds, stored as fixed size chunks of flat arrays
+ * (see ChunkedPointStore). Whole chunks are saved, loaded and dropped at once,
+ * through their own PointArchive, so the per-cell load, save and unload work
+ * on the chunk holding the cell.
+ *
+ * Chunk coordinates are cell coordinates divided by the chunk size, rounded down.
+ * Changes are tracked per chunk, saveDirty() writes every chunk that changed.
+ * With metrics set, chunk reads and writes count as single loads and saves.
+ */
+public class ChunkedPointMap<V> extends PointMap<V> {
+	private ChunkedPointStore<V> chunks;
+	private volatile PointArchive chunkArchive;
+
+	/*
+	 * chunks changed since they were last saved or loaded.
+	 */
+	private final LongPointStore<Boolean> dirtyChunks;
+
+	/*
+	 * Initializes map with 32x32 chunks
+	 */
+	public ChunkedPointMap() {
+		this(new ChunkedPointStore<V>());
+	}
+
+	/*
+	 * Initializes map with chunkSize x chunkSize chunks, chunkSize must be a power of two
+	 */
+	public ChunkedPointMap(int chunkSize) {
+		this(new ChunkedPointStore<V>(chunkSize));
+	}
+
+	private ChunkedPointMap(ChunkedPointStore<V> store) {
+		super(store);
+		chunks = store;
+		dirtyChunks = new LongPointStore<Boolean>();
+	}
+
+	/*
+	 * Returns the width and height of a chunk in cells.
+	 */
+	public int getChunkSize() {
+		return chunks.getChunkSize();
+	}
+
+	/*
+	 * Returns the chunk coordinate containing the cell coordinate c.
+	 */
+	public int toChunk(int c) {
+		return chunks.toChunk(c);
+	}
+
+	/*
+	 * Calls visitor for every entry in row y, between x0 and x1 inclusive, in order.
+	 */
+	public void forEachInRow(int y, int x0, int x1, PointVisitor<? super V> visitor) {
+		chunks.forEachInRow(y, x0, x1, visitor);
+	}
+
+	/*
+	 * Calls visitor for every entry in chunk cx, cy.
+	 */
+	public void forEachInChunk(int cx, int cy, PointVisitor<? super V> visitor) {
+		chunks.forEachInChunk(cx, cy, visitor);
+	}
+
+	/*
+	 * Returns true if chunk cx, cy has entries in memory.
+	 */
+	public boolean isChunkLoaded(int cx, int cy) {
+		return chunks.hasChunk(cx, cy);
+	}
+
+	/*
+	 * Removes chunk cx, cy from memory without saving it.
+	 */
+	public void dropChunk(int cx, int cy) {
+		chunks.removeChunk(cx, cy);
+		dirtyChunks.remove(cx, cy);
+	}
+
+	/*
+	 * Putting into a chunk that is not in memory loads its saved cells first,
+	 * since the chunk is saved as a whole and would otherwise replace them.
+	 */
+	@Override
+	public void put(int x, int y, V value) {
+		if (value != null) {
+			int cx = toChunk(x);
+			int cy = toChunk(y);
+			if (!chunks.hasChunk(cx, cy) && dirtyChunks.get(cx, cy) == null) {
+				loadChunk(cx, cy);
+			}
+		}
+		super.put(x, y, value);
+	}
+
+	/*
+	 * Removing a cell changes its chunk, so the chunk is marked dirty.
+	 */
+	@Override
+	public V remove(int x, int y) {
+		V old = super.remove(x, y);
+		if (old != null) {
+			markDirty(x, y);
+		}
+		return old;
+	}
+
+	/*
+	 * Marks the chunk holding x, y as changed.
+	 */
+	@Override
+	public void markDirty(int x, int y) {
+		dirtyChunks.put(toChunk(x), toChunk(y), Boolean.TRUE);
+	}
+
+	/*
+	 * Returns true if the chunk holding x, y changed since it was last saved or loaded.
+	 */
+	@Override
+	public boolean isDirty(int x, int y) {
+		return dirtyChunks.get(toChunk(x), toChunk(y)) != null;
+	}
+
+	/*
+	 * Returns the number of chunks saveDirty() would write.
+	 */
+	@Override
+	public int dirtyCount() {
+		return dirtyChunks.size();
+	}
+
+	/*
+	 * Saves, without unloading, every chunk changed since it was last saved or loaded.
+	 * A chunk whose cells were all removed is saved empty, so they stay removed.
+	 * Returns false if a chunk could not be written, it stays dirty then.
+	 */
+	@Override
+	public boolean saveDirty() {
+		final long[] keys = new long[dirtyChunks.size()];
+		dirtyChunks.forEach(new PointVisitor<Boolean>() {
+			int i = 0;
+
+			@Override
+			public void visit(int cx, int cy, Boolean value) {
+				keys[i++] = LongPointStore.pack(cx, cy);
+			}
+		});
+		boolean saved = true;
+		for (long key : keys) {
+			int cx = LongPointStore.unpackX(key);
+			int cy = LongPointStore.unpackY(key);
+			if (chunks.hasChunk(cx, cy)) {
+				saved &= saveChunk(cx, cy);
+			} else {
+				dirtyChunks.remove(cx, cy);
+				saved &= writeChunk(cx, cy, new Object[getChunkSize() * getChunkSize()]);
+			}
+		}
+		return flush() && saved;
+	}
+
+	/*
+	 * Saves and unloads every chunk on map.
+	 */
+	@Override
+	public void saveMap() {
+		final long[] keys = new long[chunks.chunkCount()];
+		chunks.forEachChunk(new PointVisitor<Object[]>() {
+			int i = 0;
+
+			@Override
+			public void visit(int cx, int cy, Object[] cells) {
+				keys[i++] = LongPointStore.pack(cx, cy);
+			}
+		});
+		for (long key : keys) {
+			unloadChunk(LongPointStore.unpackX(key), LongPointStore.unpackY(key));
+		}
+		flush();
+	}
+
+	/*
+	 * Unloads every chunk on map, and writes them to disk in the background.
+	 * The first call switches the chunk archive to a WriteBehindArchive around
+	 * the current one, see PointMap.saveMapAsync().
+	 */
+	@Override
+	public CompletableFuture<Void> saveMapAsync() {
+		WriteBehindArchive writer = getWriteBehindChunkArchive();
+		final long[] keys = new long[chunks.chunkCount()];
+		final Object[][] cells = new Object[keys.length][];
+		chunks.forEachChunk(new PointVisitor<Object[]>() {
+			int i = 0;
+
+			@Override
+			public void visit(int cx, int cy, Object[] chunk) {
+				keys[i] = LongPointStore.pack(cx, cy);
+				cells[i++] = chunk;
+			}
+		});
+		byte[][] data = new byte[keys.length][];
+		int count = 0;
+		StorageMetrics metrics = getMetrics();
+		for (int i = 0; i < keys.length; i++) {
+			long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+			try {
+				data[count] = encode(cells[i]);
+				if (metrics != null) {
+					metrics.written(data[count].length);
+				}
+				keys[count++] = keys[i];
+			} catch (IOException e) {
+				e.printStackTrace();
+				if (metrics != null) {
+					metrics.failed(Op.SAVE);
+				}
+			} finally {
+				if (metrics != null) {
+					metrics.end(Op.SAVE, start);
+				}
+			}
+		}
+		writer.writeAll(keys, data, count);
+		for (int i = 0; i < count; i++) {
+			int cx = LongPointStore.unpackX(keys[i]);
+			int cy = LongPointStore.unpackY(keys[i]);
+			stampWrite(cx, cy);
+			chunks.removeChunk(cx, cy);
+			dirtyChunks.remove(cx, cy);
+		}
+		return writer.barrier();
+	}
+
+	/*
+	 * Waits until every save so far has reached the files of both archives.
+	 */
+	@Override
+	public boolean flush() {
+		boolean flushed = super.flush();
+		try {
+			getChunkArchive().flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return flushed;
+	}
+
+	/*
+	 * Loads the chunk holding x, y. Returns false if the chunk is in memory or
+	 * changed since it was saved, was never saved or could not be read, or
+	 * holds nothing at x, y.
+	 */
+	@Override
+	public boolean load(int x, int y) {
+		int cx = toChunk(x);
+		int cy = toChunk(y);
+		if (chunks.hasChunk(cx, cy) || dirtyChunks.get(cx, cy) != null) {
+			return false;
+		}
+		return loadChunk(cx, cy) && chunks.get(x, y) != null;
+	}
+
+	/*
+	 * Saves the chunk holding x, y without unloading it.
+	 */
+	@Override
+	public boolean save(int x, int y) {
+		return saveChunk(toChunk(x), toChunk(y));
+	}
+
+	/*
+	 * Saves and removes the chunk holding x, y from memory.
+	 */
+	@Override
+	public boolean unload(int x, int y) {
+		return unloadChunk(toChunk(x), toChunk(y));
+	}
+
+	/*
+	 * Saves chunk cx, cy without unloading it. Returns false if the chunk is
+	 * not in memory or could not be written.
+	 */
+	public boolean saveChunk(int cx, int cy) {
+		dirtyChunks.remove(cx, cy);
+		Object[] cells = chunks.getChunk(cx, cy);
+		if (cells == null) {
+			return false;
+		}
+		return writeChunk(cx, cy, cells);
+	}
+
+	/*
+	 * Writes cells as chunk cx, cy, marking the chunk dirty again if that fails.
+	 */
+	private boolean writeChunk(int cx, int cy, Object[] cells) {
+		StorageMetrics metrics = getMetrics();
+		long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+		try {
+			byte[] data = encode(cells);
+			getChunkArchive().write(cx, cy, data);
+			stampWrite(cx, cy);
+			if (metrics != null) {
+				metrics.written(data.length);
+			}
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			dirtyChunks.put(cx, cy, Boolean.TRUE);
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+			}
+			return false;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.SAVE, start);
+			}
+		}
+	}
+
+	/*
+	 * Saves and removes chunk cx, cy from memory. Returns false if the chunk
+	 * is not in memory or could not be written, in which case it stays loaded.
+	 */
+	public boolean unloadChunk(int cx, int cy) {
+		StorageMetrics metrics = getMetrics();
+		long start = metrics == null ? 0 : metrics.start(Op.UNLOAD);
+		try {
+			if (saveChunk(cx, cy)) {
+				chunks.removeChunk(cx, cy);
+				return true;
+			}
+			return false;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.UNLOAD, start);
+			}
+		}
+	}
+
+	/*
+	 * Loads chunk cx, cy from file, replacing whatever is in memory for it.
+	 * Returns false if the chunk was never saved or could not be read.
+	 */
+	public boolean loadChunk(int cx, int cy) {
+		StorageMetrics metrics = getMetrics();
+		long start = metrics == null ? 0 : metrics.start(Op.LOAD);
+		try {
+			byte[] data = getChunkArchive().read(cx, cy);
+			if (data == null) {
+				if (metrics != null) {
+					metrics.missed();
+				}
+				return false;
+			}
+			if (metrics != null) {
+				metrics.read(data.length);
+			}
+			chunks.putChunk(cx, cy, (Object[]) decode(data));
+			dirtyChunks.remove(cx, cy);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			if (metrics != null) {
+				metrics.failed(Op.LOAD);
+			}
+			return false;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.LOAD, start);
+			}
+		}
+	}
+
+	/*
+	 * Puts cells read from the chunk archive as chunk cx, cy, unless the chunk
+	 * was loaded or changed in the meantime. Returns true if they were put.
+	 */
+	boolean putLoadedChunk(int cx, int cy, Object[] cells) {
+		if (chunks.hasChunk(cx, cy) || dirtyChunks.get(cx, cy) != null) {
+			return false;
+		}
+		chunks.putChunk(cx, cy, cells);
+		return true;
+	}
+
+	/*
+	 * Returns the archive whole chunks are saved to, keyed by chunk coordinate.
+	 * By default one file per chunk in the chunk folder of the save folder.
+	 * Safe to call from any thread.
+	 */
+	public PointArchive getChunkArchive() {
+		PointArchive current = chunkArchive;
+		if (current == null) {
+			synchronized (this) {
+				if (chunkArchive == null) {
+					chunkArchive = new FilePointArchive(getSaveLocation() + "/chunk");
+				}
+				current = chunkArchive;
+			}
+		}
+		return current;
+	}
+
+	/*
+	 * Sets the archive whole chunks are saved to, i.e. a RegionPointArchive
+	 * to pack several chunks into one file.
+	 */
+	public synchronized void setChunkArchive(PointArchive archive) {
+		chunkArchive = archive;
+	}
+
+	/*
+	 * Returns the chunk archive as a WriteBehindArchive, wrapping it on first use.
+	 */
+	private synchronized WriteBehindArchive getWriteBehindChunkArchive() {
+		PointArchive current = getChunkArchive();
+		if (current instanceof WriteBehindArchive) {
+			return (WriteBehindArchive) current;
+		}
+		WriteBehindArchive writer = new WriteBehindArchive(current);
+		chunkArchive = writer;
+		return writer;
+	}
+}
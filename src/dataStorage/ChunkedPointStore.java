@@ -0,0 +1,465 @@
+package dataStorage;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * PointStore for dense, contiguous grids.
+ * Cells are grouped into square chunks of a power of two size, each chunk is a
+ * flat row-major array, and chunks are indexed by chunk coordinate.
+ * This avoids an entry object per cell and keeps neighbouring cells next to each
+ * other in memory, so iteration and row scans walk arrays in order.
+ *
+ * snapshot() is O(1): the copy shares the chunk table and every chunk, and a
+ * chunk is only copied when it is first written after the snapshot, so a
+ * snapshot costs one chunk copy per chunk that actually changes.
+ *
+ * Not thread safe.
+ */
+public class ChunkedPointStore<V> implements PointStore<V> {
+
+	/*
+	 * log2 of the chunk width, chunks are (1 << bits) cells wide and high.
+	 */
+	private final int bits;
+
+	/*
+	 * mask for the position of a cell inside its chunk.
+	 */
+	private final int mask;
+
+	/*
+	 * chunks currently in memory, keyed by chunk coordinate.
+	 */
+	private final LongPointStore<Chunk> chunks;
+
+	private int size;
+
+	/*
+	 * bumped by every snapshot, chunks from an older epoch may be shared
+	 * with a snapshot and are copied before they are written.
+	 */
+	private int epoch;
+
+	/*
+	 * A single chunk, cells are stored row by row.
+	 */
+	static final class Chunk {
+		final Object[] cells;
+		final int version;
+		int count;
+
+		Chunk(int length, int version) {
+			cells = new Object[length];
+			this.version = version;
+		}
+
+		Chunk(Object[] cells, int version) {
+			this.cells = cells;
+			this.version = version;
+			for (Object cell : cells) {
+				if (cell != null) {
+					count++;
+				}
+			}
+		}
+
+		Chunk(Chunk other, int version) {
+			cells = other.cells.clone();
+			count = other.count;
+			this.version = version;
+		}
+	}
+
+	/*
+	 * Initializes with 32x32 chunks.
+	 */
+	public ChunkedPointStore() {
+		this(32);
+	}
+
+	/*
+	 * Initializes with chunks of chunkSize x chunkSize cells,
+	 * chunkSize must be a power of two.
+	 */
+	public ChunkedPointStore(int chunkSize) {
+		if (chunkSize < 1 || Integer.bitCount(chunkSize) != 1) {
+			throw new IllegalArgumentException("Chunk size must be a power of two: " + chunkSize);
+		}
+		bits = Integer.numberOfTrailingZeros(chunkSize);
+		mask = chunkSize - 1;
+		chunks = new LongPointStore<Chunk>();
+	}
+
+	/*
+	 * Initializes a snapshot sharing the given chunk table.
+	 */
+	private ChunkedPointStore(int bits, LongPointStore<Chunk> chunks, int size, int epoch) {
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.chunks = chunks;
+		this.size = size;
+		this.epoch = epoch;
+	}
+
+	/*
+	 * Returns the width and height of a chunk in cells.
+	 */
+	public int getChunkSize() {
+		return mask + 1;
+	}
+
+	/*
+	 * Returns the coordinate of the chunk containing the x or y coordinate c.
+	 */
+	public int toChunk(int c) {
+		return c >> bits;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(int x, int y) {
+		Chunk chunk = chunks.get(x >> bits, y >> bits);
+		if (chunk == null) {
+			return null;
+		}
+		return (V) chunk.cells[index(x, y)];
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(int x, int y, V value) {
+		if (value == null) {
+			return remove(x, y);
+		}
+		Chunk chunk = chunks.get(x >> bits, y >> bits);
+		if (chunk == null) {
+			chunk = new Chunk(1 << (bits << 1), epoch);
+			chunks.put(x >> bits, y >> bits, chunk);
+		} else {
+			chunk = writable(x >> bits, y >> bits, chunk);
+		}
+		int i = index(x, y);
+		Object old = chunk.cells[i];
+		chunk.cells[i] = value;
+		if (old == null) {
+			chunk.count++;
+			size++;
+		}
+		return (V) old;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(int x, int y) {
+		Chunk chunk = chunks.get(x >> bits, y >> bits);
+		if (chunk == null) {
+			return null;
+		}
+		int i = index(x, y);
+		Object old = chunk.cells[i];
+		if (old != null) {
+			size--;
+			if (chunk.count == 1) {
+				chunks.remove(x >> bits, y >> bits);
+			} else {
+				chunk = writable(x >> bits, y >> bits, chunk);
+				chunk.cells[i] = null;
+				chunk.count--;
+			}
+		}
+		return (V) old;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		chunks.clear();
+		size = 0;
+	}
+
+	/*
+	 * O(1), see the class comment. Both stores stay writable.
+	 */
+	@Override
+	public ChunkedPointStore<V> snapshot() {
+		epoch++;
+		return new ChunkedPointStore<V>(bits, chunks.snapshot(), size, epoch);
+	}
+
+	@Override
+	public void forEach(final PointVisitor<? super V> visitor) {
+		chunks.forEach(new PointVisitor<Chunk>() {
+			@Override
+			public void visit(int cx, int cy, Chunk chunk) {
+				visitChunk(cx, cy, chunk, visitor);
+			}
+		});
+	}
+
+	/*
+	 * Walks the chunks, and splits by handing out whole chunks, so parallel
+	 * streams keep each chunk's cells on one thread.
+	 * The store must not be changed while the spliterator is in use.
+	 */
+	@Override
+	public Spliterator<PointEntry<V>> spliterator() {
+		return new ChunkSpliterator(chunks.spliterator(1), size);
+	}
+
+	/*
+	 * Spliterator over the cells of the chunks given by a spliterator over the chunk table.
+	 */
+	private final class ChunkSpliterator implements Spliterator<PointEntry<V>> {
+		private final Spliterator<PointEntry<Chunk>> outer;
+		private PointEntry<Chunk> current;
+		private int index;
+		private long estimate;
+
+		ChunkSpliterator(Spliterator<PointEntry<Chunk>> outer, long estimate) {
+			this.outer = outer;
+			this.estimate = estimate;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super PointEntry<V>> action) {
+			while (true) {
+				if (current != null) {
+					Object[] cells = current.value.cells;
+					while (index < cells.length) {
+						int i = index++;
+						if (cells[i] != null) {
+							action.accept(new PointEntry<V>((current.x << bits) + (i & mask),
+									(current.y << bits) + (i >> bits), (V) cells[i]));
+							return true;
+						}
+					}
+					current = null;
+				}
+				if (!outer.tryAdvance(new Consumer<PointEntry<Chunk>>() {
+					@Override
+					public void accept(PointEntry<Chunk> chunk) {
+						current = chunk;
+						index = 0;
+					}
+				})) {
+					return false;
+				}
+			}
+		}
+
+		@Override
+		public Spliterator<PointEntry<V>> trySplit() {
+			Spliterator<PointEntry<Chunk>> prefix = outer.trySplit();
+			if (prefix == null) {
+				return null;
+			}
+			long half = estimate >>> 1;
+			estimate -= half;
+			return new ChunkSpliterator(prefix, half);
+		}
+
+		@Override
+		public long estimateSize() {
+			return estimate;
+		}
+
+		@Override
+		public int characteristics() {
+			return NONNULL | DISTINCT;
+		}
+	}
+
+	/*
+	 * Calls visitor for every entry in row y with x0 <= x <= x1, in order of x.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEachInRow(int y, int x0, int x1, PointVisitor<? super V> visitor) {
+		int cy = y >> bits;
+		int rowStart = (y & mask) << bits;
+		for (long cx = x0 >> bits; cx <= x1 >> bits; cx++) {
+			Chunk chunk = chunks.get((int) cx, cy);
+			if (chunk != null) {
+				int base = (int) cx << bits;
+				int from = Math.max(x0, base) - base;
+				int to = Math.min(x1, base + mask) - base;
+				for (int lx = from; lx <= to; lx++) {
+					Object value = chunk.cells[rowStart + lx];
+					if (value != null) {
+						visitor.visit(base + lx, y, (V) value);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * The chunk table acts as a grid index: only chunks overlapping the rectangle
+	 * are visited, found by probing each chunk position when the rectangle covers
+	 * fewer chunks than are loaded, and by walking the loaded chunks otherwise.
+	 */
+	@Override
+	public void forEachInRect(final int x0, final int y0, final int x1, final int y1,
+			final PointVisitor<? super V> visitor) {
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		final int cx0 = x0 >> bits;
+		final int cy0 = y0 >> bits;
+		final int cx1 = x1 >> bits;
+		final int cy1 = y1 >> bits;
+		long width = (long) cx1 - cx0 + 1;
+		long height = (long) cy1 - cy0 + 1;
+		if (width <= chunks.size() && height <= chunks.size() && width * height <= chunks.size()) {
+			for (long cy = cy0; cy <= cy1; cy++) {
+				for (long cx = cx0; cx <= cx1; cx++) {
+					Chunk chunk = chunks.get((int) cx, (int) cy);
+					if (chunk != null) {
+						visitChunkInRect((int) cx, (int) cy, chunk, x0, y0, x1, y1, visitor);
+					}
+				}
+			}
+		} else {
+			chunks.forEach(new PointVisitor<Chunk>() {
+				@Override
+				public void visit(int cx, int cy, Chunk chunk) {
+					if (cx >= cx0 && cx <= cx1 && cy >= cy0 && cy <= cy1) {
+						visitChunkInRect(cx, cy, chunk, x0, y0, x1, y1, visitor);
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * Calls visitor for every entry of chunk cx, cy.
+	 */
+	public void forEachInChunk(int cx, int cy, PointVisitor<? super V> visitor) {
+		Chunk chunk = chunks.get(cx, cy);
+		if (chunk != null) {
+			visitChunk(cx, cy, chunk, visitor);
+		}
+	}
+
+	/*
+	 * Returns true if chunk cx, cy has any entries in memory.
+	 */
+	public boolean hasChunk(int cx, int cy) {
+		return chunks.get(cx, cy) != null;
+	}
+
+	/*
+	 * Returns the number of chunks in memory.
+	 */
+	public int chunkCount() {
+		return chunks.size();
+	}
+
+	/*
+	 * Calls visitor once per chunk in memory, with the chunk coordinates
+	 * and the chunk's cell array. The array must not be modified.
+	 */
+	public void forEachChunk(final PointVisitor<Object[]> visitor) {
+		chunks.forEach(new PointVisitor<Chunk>() {
+			@Override
+			public void visit(int cx, int cy, Chunk chunk) {
+				visitor.visit(cx, cy, chunk.cells);
+			}
+		});
+	}
+
+	/*
+	 * Returns a copy of the cells of chunk cx, cy, row by row, or null if the
+	 * chunk is not in memory.
+	 */
+	public Object[] getChunk(int cx, int cy) {
+		Chunk chunk = chunks.get(cx, cy);
+		return chunk == null ? null : chunk.cells.clone();
+	}
+
+	/*
+	 * Replaces chunk cx, cy with the given cells, row by row.
+	 * The array is used directly and must be chunkSize * chunkSize long.
+	 */
+	public void putChunk(int cx, int cy, Object[] cells) {
+		if (cells.length != 1 << (bits << 1)) {
+			throw new IllegalArgumentException("Chunk has " + cells.length + " cells, expected " + (1 << (bits << 1)));
+		}
+		removeChunk(cx, cy);
+		Chunk chunk = new Chunk(cells, epoch);
+		if (chunk.count > 0) {
+			chunks.put(cx, cy, chunk);
+			size += chunk.count;
+		}
+	}
+
+	/*
+	 * Removes chunk cx, cy and returns its cells, or null if it was not in memory.
+	 */
+	public Object[] removeChunk(int cx, int cy) {
+		Chunk chunk = chunks.remove(cx, cy);
+		if (chunk == null) {
+			return null;
+		}
+		size -= chunk.count;
+		return chunk.version == epoch ? chunk.cells : chunk.cells.clone();
+	}
+
+	/*
+	 * Returns chunk cx, cy ready to be written, copying it first if a snapshot
+	 * may still be using it.
+	 */
+	private Chunk writable(int cx, int cy, Chunk chunk) {
+		if (chunk.version == epoch) {
+			return chunk;
+		}
+		Chunk copy = new Chunk(chunk, epoch);
+		chunks.put(cx, cy, copy);
+		return copy;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visitChunk(int cx, int cy, Chunk chunk, PointVisitor<? super V> visitor) {
+		Object[] cells = chunk.cells;
+		int baseX = cx << bits;
+		int baseY = cy << bits;
+		for (int i = 0; i < cells.length; i++) {
+			if (cells[i] != null) {
+				visitor.visit(baseX + (i & mask), baseY + (i >> bits), (V) cells[i]);
+			}
+		}
+	}
+
+	/*
+	 * Visits the part of a chunk that lies inside the rectangle, row by row.
+	 */
+	@SuppressWarnings("unchecked")
+	private void visitChunkInRect(int cx, int cy, Chunk chunk, int x0, int y0, int x1, int y1,
+			PointVisitor<? super V> visitor) {
+		Object[] cells = chunk.cells;
+		int baseX = cx << bits;
+		int baseY = cy << bits;
+		int fromX = Math.max(x0, baseX) - baseX;
+		int toX = Math.min(x1, baseX + mask) - baseX;
+		int fromY = Math.max(y0, baseY) - baseY;
+		int toY = Math.min(y1, baseY + mask) - baseY;
+		for (int ly = fromY; ly <= toY; ly++) {
+			int row = ly << bits;
+			for (int lx = fromX; lx <= toX; lx++) {
+				Object value = cells[row + lx];
+				if (value != null) {
+					visitor.visit(baseX + lx, baseY + ly, (V) value);
+				}
+			}
+		}
+	}
+
+	private int index(int x, int y) {
+		return ((y & mask) << bits) | (x & mask);
+	}
+}
@@ -0,0 +1,21 @@
+package dataStorage;
+
+import java.io.IOException;
+
+/*
+ * Turns values into bytes and back, used by PointMap and Scribe to save objects.
+ * SerialCodec uses java serialization, BinaryCodec a compact tagged format,
+ * and DeflateCodec compresses the output of another codec.
+ */
+public interface Codec {
+	
+	/*
+	 * Returns the encoded form of value.
+	 */
+	byte[] encode(Object value) throws IOException;
+	
+	/*
+	 * Returns the value encoded in data.
+	 */
+	Object decode(byte[] data) throws IOException, ClassNotFoundException;
+}
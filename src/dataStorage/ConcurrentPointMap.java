@@ -0,0 +1,77 @@
+package dataStorage;
+
+/*
+ * Thread safe PointMap, backed by a StripedPointStore.
+ * Threads working on different areas of the map lock different stripes, so
+ * disjoint regions can be updated in parallel without a global lock.
+ * Adds the atomic putIfAbsent, compute and merge functions.
+ */
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+public class ConcurrentPointMap<V> extends PointMap<V> {
+	private StripedPointStore<V> stripes;
+
+	/*
+	 * Initializes map with 16x16 regions and four stripes per processor
+	 */
+	public ConcurrentPointMap() {
+		this(new StripedPointStore<V>());
+	}
+
+	/*
+	 * Initializes map with regionSize x regionSize regions spread over stripeCount locks.
+	 * Workers that stay inside their own regions never contend.
+	 */
+	public ConcurrentPointMap(int regionSize, int stripeCount) {
+		this(new StripedPointStore<V>(regionSize, stripeCount));
+	}
+
+	private ConcurrentPointMap(StripedPointStore<V> store) {
+		super(store, new StripedPointStore<Boolean>());
+		stripes = store;
+	}
+
+	/*
+	 * Puts value at x, y only if nothing is there, returns the existing value or null.
+	 */
+	public V putIfAbsent(int x, int y, V value) {
+		V existing = stripes.putIfAbsent(x, y, value);
+		if (existing == null && value != null) {
+			markDirty(x, y);
+		}
+		return existing;
+	}
+
+	/*
+	 * Atomically replaces the value at x, y with remapping(current), current may be null.
+	 * A null result removes the entry. Returns the new value.
+	 */
+	public V compute(int x, int y, Function<? super V, ? extends V> remapping) {
+		V value = stripes.compute(x, y, remapping);
+		if (value != null) {
+			markDirty(x, y);
+		}
+		return value;
+	}
+
+	/*
+	 * Atomically puts value at x, y, or combines it with the existing value using remapping.
+	 * A null result removes the entry. Returns the new value.
+	 */
+	public V merge(int x, int y, V value, BiFunction<? super V, ? super V, ? extends V> remapping) {
+		V merged = stripes.merge(x, y, value, remapping);
+		if (merged != null) {
+			markDirty(x, y);
+		}
+		return merged;
+	}
+
+	/*
+	 * Loaded values never replace an entry another thread put in the meantime.
+	 */
+	@Override
+	protected boolean putLoaded(int x, int y, V value) {
+		return stripes.putIfAbsent(x, y, value) == null;
+	}
+}
@@ -0,0 +1,111 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Codec compressing the output of another codec with Deflate.
+ * Compressed data starts with a marker byte and the uncompressed length.
+ * When compressing does not save space the inner codec's bytes are kept as they are,
+ * and data without the marker is passed straight to the inner codec,
+ * so uncompressed saves keep loading.
+ */
+public class DeflateCodec implements Codec {
+
+	/*
+	 * first byte of compressed data, not used as a first byte by the other codecs.
+	 */
+	private static final int MARKER = 0x7F;
+
+	/*
+	 * marker byte and uncompressed length.
+	 */
+	private static final int HEADER = 5;
+
+	private final Codec inner;
+	private final int level;
+
+	/*
+	 * Initializes codec compressing inner's output at the default level.
+	 */
+	public DeflateCodec(Codec inner) {
+		this(inner, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/*
+	 * Initializes codec compressing inner's output at level, from
+	 * Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9).
+	 */
+	public DeflateCodec(Codec inner, int level) {
+		this.inner = inner;
+		this.level = level;
+	}
+
+	@Override
+	public byte[] encode(Object value) throws IOException {
+		byte[] raw = inner.encode(value);
+		if (raw.length > 0 && (raw[0] & 0xFF) == MARKER) {
+			throw new IOException("Inner codec output starts with the compression marker");
+		}
+		if (raw.length <= HEADER) {
+			return raw;
+		}
+		Deflater deflater = new Deflater(level);
+		try {
+			deflater.setInput(raw);
+			deflater.finish();
+			byte[] out = new byte[raw.length];
+			out[0] = (byte) MARKER;
+			out[1] = (byte) (raw.length >>> 24);
+			out[2] = (byte) (raw.length >>> 16);
+			out[3] = (byte) (raw.length >>> 8);
+			out[4] = (byte) raw.length;
+			int position = HEADER;
+			while (!deflater.finished() && position < out.length) {
+				position += deflater.deflate(out, position, out.length - position);
+			}
+			if (!deflater.finished()) {
+				return raw;
+			}
+			return Arrays.copyOf(out, position);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		if (data.length == 0 || (data[0] & 0xFF) != MARKER) {
+			return inner.decode(data);
+		}
+		if (data.length < HEADER) {
+			throw new StreamCorruptedException("Truncated compressed data");
+		}
+		int length = (data[1] & 0xFF) << 24 | (data[2] & 0xFF) << 16 | (data[3] & 0xFF) << 8 | (data[4] & 0xFF);
+		if (length < 0) {
+			throw new StreamCorruptedException("Bad length " + length);
+		}
+		byte[] raw = new byte[length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data, HEADER, data.length - HEADER);
+			int position = 0;
+			while (position < length) {
+				int n = inflater.inflate(raw, position, length - position);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					throw new StreamCorruptedException("Truncated compressed data");
+				}
+				position += n;
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return inner.decode(raw);
+	}
+}
@@ -0,0 +1,389 @@
+package dataStorage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/*
+ * Archive that saves an object written again with few changes as a patch of
+ * the blocks that changed, for frequent checkpoints of large, mostly unchanged
+ * state. Set on a Scribe with setDeltaSaves(true).
+ *
+ * The first save of a name writes a base, the full bytes. Later saves compare
+ * the new bytes block by block with the last saved version and write only the
+ * changed blocks, as patch 1, 2 and so on of a chain on that base. Reading
+ * applies the chain to the base. Once a chain has maxChain patches, or its
+ * patches add up to half the base, the next save writes a fresh base instead.
+ * Small objects therefore always get a fresh base.
+ *
+ * Blocks are compared by a 64 bit hash of each, kept in memory per name, so
+ * the last version need not be held or read back. The hashes of a name saved
+ * by an earlier run are rebuilt by reading it once.
+ *
+ * In the target, the base is stored under the name and patch i as name#i,
+ * names ending in # and a number should not be used for other objects.
+ * Bases and patches carry the id of their chain, so patches left from an
+ * earlier chain, or one torn by a crash, end the chain where they appear.
+ * Objects saved through this archive must be loaded through one; values saved
+ * before it was set are read as they are.
+ */
+public class DeltaObjectArchive implements ObjectArchive {
+	static final int BASE_MAGIC = 0x53434442;
+	static final int PATCH_MAGIC = 0x53434450;
+
+	//magic, chain id
+	static final int BASE_HEADER = 12;
+
+	//magic, CRC32 of the rest, chain id, number in chain, new length, number of blocks
+	static final int PATCH_HEADER = 28;
+
+	private final ObjectArchive target;
+	private final int blockSize;
+	private volatile int maxChain;
+	private final ConcurrentHashMap<String, Chain> chains;
+	private final Random random;
+	private final LongAdder bytesGiven;
+	private final LongAdder bytesWritten;
+
+	/*
+	 * What is saved under one name. Guarded by its own lock.
+	 */
+	private static class Chain {
+		//false until read or written this run
+		boolean known;
+
+		//0 when there is no base, i.e. nothing or a plain value is saved
+		long id;
+		int patches;
+		int baseLength;
+		long patchBytes;
+		long[] hashes;
+	}
+
+	/*
+	 * Initializes archive saving into target in 4 KB blocks with chains of up to 8 patches.
+	 */
+	public DeltaObjectArchive(ObjectArchive target) {
+		this(target, 4096, 8);
+	}
+
+	/*
+	 * Initializes archive saving into target, comparing blocks of blockSize bytes.
+	 * Smaller blocks make smaller patches for scattered changes but more hashes.
+	 */
+	public DeltaObjectArchive(ObjectArchive target, int blockSize, int maxChain) {
+		if (blockSize < 8) {
+			throw new IllegalArgumentException("Block size must be at least 8 bytes");
+		}
+		this.target = target;
+		this.blockSize = blockSize;
+		setMaxChain(maxChain);
+		chains = new ConcurrentHashMap<String, Chain>();
+		random = new Random();
+		bytesGiven = new LongAdder();
+		bytesWritten = new LongAdder();
+	}
+
+	/*
+	 * Returns the archive bases and patches are stored in.
+	 */
+	public ObjectArchive getTarget() {
+		return target;
+	}
+
+	public int getMaxChain() {
+		return maxChain;
+	}
+
+	/*
+	 * Sets how many patches a chain may have before a fresh base is written.
+	 * 0 writes every save as a base, while chains already saved still read.
+	 */
+	public void setMaxChain(int maxChain) {
+		if (maxChain < 0) {
+			throw new IllegalArgumentException("Chain length must not be negative");
+		}
+		this.maxChain = maxChain;
+	}
+
+	/*
+	 * Returns the number of bytes given to write(), as they would be saved without deltas.
+	 */
+	public long getBytesGiven() {
+		return bytesGiven.sum();
+	}
+
+	/*
+	 * Returns the number of bytes of bases and patches written to the target.
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public byte[] read(String name) throws IOException {
+		Chain chain = chain(name);
+		synchronized (chain) {
+			return load(name, chain);
+		}
+	}
+
+	@Override
+	public void write(String name, byte[] data) throws IOException {
+		Chain chain = chain(name);
+		synchronized (chain) {
+			bytesGiven.add(data.length);
+			try {
+				if (!chain.known) {
+					load(name, chain);
+				}
+				long[] hashes = hashes(data);
+				int limit = maxChain;
+				if (chain.id == 0 || chain.patches >= limit) {
+					writeBase(name, chain, data, hashes);
+					return;
+				}
+				int changed = 0;
+				for (int i = 0; i < hashes.length; i++) {
+					if (i >= chain.hashes.length || hashes[i] != chain.hashes[i]) {
+						changed++;
+					}
+				}
+				long size = PATCH_HEADER + (long) changed * (4 + blockSize);
+				if (chain.patchBytes + size > chain.baseLength / 2) {
+					writeBase(name, chain, data, hashes);
+				} else {
+					writePatch(name, chain, data, hashes, changed);
+				}
+			} catch (IOException | RuntimeException e) {
+				//what was saved is not known for sure anymore
+				chain.known = false;
+				throw e;
+			}
+		}
+	}
+
+	/*
+	 * Streams plain values from the target, only bases with patches are read in full.
+	 */
+	@Override
+	public InputStream openInput(String name) throws IOException {
+		InputStream in = target.openInput(name);
+		if (in == null) {
+			return null;
+		}
+		in = new BufferedInputStream(in);
+		in.mark(4);
+		byte[] magic = new byte[4];
+		int read = 0;
+		int n;
+		while (read < 4 && (n = in.read(magic, read, 4 - read)) > 0) {
+			read += n;
+		}
+		in.reset();
+		if (read == 4 && ByteBuffer.wrap(magic).getInt() == BASE_MAGIC) {
+			in.close();
+			byte[] data = read(name);
+			return data == null ? null : new ByteArrayInputStream(data);
+		}
+		return in;
+	}
+
+	/*
+	 * Streams the bytes to the target as a plain value, which replaces any chain.
+	 */
+	@Override
+	public ArchiveOutputStream openOutput(final String name) throws IOException {
+		final Chain chain = chain(name);
+		final ArchiveOutputStream stream = target.openOutput(name);
+		return new ArchiveOutputStream(stream) {
+			@Override
+			public void close() throws IOException {
+				try {
+					stream.close();
+				} finally {
+					synchronized (chain) {
+						chain.known = false;
+					}
+				}
+			}
+
+			@Override
+			public void abort() throws IOException {
+				stream.abort();
+			}
+		};
+	}
+
+	@Override
+	public void flush() throws IOException {
+		target.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		target.close();
+	}
+
+	private Chain chain(String name) {
+		Chain chain = chains.get(name);
+		if (chain == null) {
+			Chain created = new Chain();
+			chain = chains.putIfAbsent(name, created);
+			if (chain == null) {
+				chain = created;
+			}
+		}
+		return chain;
+	}
+
+	/*
+	 * Reads the base of name and applies its patches, noting the chain in chain.
+	 * Returns null if nothing is saved as name.
+	 */
+	private byte[] load(String name, Chain chain) throws IOException {
+		byte[] base = target.read(name);
+		chain.known = true;
+		chain.id = 0;
+		chain.patches = 0;
+		chain.patchBytes = 0;
+		chain.hashes = null;
+		if (base == null || base.length < BASE_HEADER || ByteBuffer.wrap(base).getInt() != BASE_MAGIC) {
+			return base;
+		}
+		ByteBuffer header = ByteBuffer.wrap(base);
+		header.getInt();
+		long id = header.getLong();
+		byte[] data = Arrays.copyOfRange(base, BASE_HEADER, base.length);
+		chain.id = id;
+		chain.baseLength = data.length;
+		for (int seq = 1;; seq++) {
+			byte[] patch = target.read(name + "#" + seq);
+			if (patch == null || !valid(patch, id, seq)) {
+				break;
+			}
+			data = apply(patch, data);
+			chain.patches = seq;
+			chain.patchBytes += patch.length;
+		}
+		chain.hashes = hashes(data);
+		return data;
+	}
+
+	private boolean valid(byte[] patch, long id, int seq) {
+		if (patch.length < PATCH_HEADER) {
+			return false;
+		}
+		ByteBuffer in = ByteBuffer.wrap(patch);
+		if (in.getInt() != PATCH_MAGIC) {
+			return false;
+		}
+		int crc = in.getInt();
+		if (in.getLong() != id || in.getInt() != seq) {
+			return false;
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(patch, 8, patch.length - 8);
+		return (int) checksum.getValue() == crc;
+	}
+
+	private byte[] apply(byte[] patch, byte[] data) {
+		ByteBuffer in = ByteBuffer.wrap(patch);
+		in.position(20);
+		int length = in.getInt();
+		int count = in.getInt();
+		byte[] result = Arrays.copyOf(data, length);
+		for (int i = 0; i < count; i++) {
+			int offset = in.getInt() * blockSize;
+			in.get(result, offset, Math.min(blockSize, length - offset));
+		}
+		return result;
+	}
+
+	private void writeBase(String name, Chain chain, byte[] data, long[] hashes) throws IOException {
+		long id;
+		do {
+			id = random.nextLong();
+		} while (id == 0 || id == chain.id);
+		ByteBuffer out = ByteBuffer.allocate(BASE_HEADER + data.length);
+		out.putInt(BASE_MAGIC).putLong(id).put(data);
+		chain.known = false;
+		target.write(name, out.array());
+		bytesWritten.add(out.capacity());
+		chain.known = true;
+		chain.id = id;
+		chain.patches = 0;
+		chain.baseLength = data.length;
+		chain.patchBytes = 0;
+		chain.hashes = hashes;
+	}
+
+	private void writePatch(String name, Chain chain, byte[] data, long[] hashes, int changed) throws IOException {
+		int seq = chain.patches + 1;
+		int size = PATCH_HEADER;
+		for (int i = 0; i < hashes.length; i++) {
+			if (i >= chain.hashes.length || hashes[i] != chain.hashes[i]) {
+				size += 4 + Math.min(blockSize, data.length - i * blockSize);
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocate(size);
+		out.putInt(PATCH_MAGIC).putInt(0).putLong(chain.id).putInt(seq).putInt(data.length).putInt(changed);
+		for (int i = 0; i < hashes.length; i++) {
+			if (i >= chain.hashes.length || hashes[i] != chain.hashes[i]) {
+				int offset = i * blockSize;
+				out.putInt(i).put(data, offset, Math.min(blockSize, data.length - offset));
+			}
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(out.array(), 8, size - 8);
+		out.putInt(4, (int) checksum.getValue());
+		chain.known = false;
+		target.write(name + "#" + seq, out.array());
+		bytesWritten.add(size);
+		chain.known = true;
+		chain.patches = seq;
+		chain.patchBytes += size;
+		chain.hashes = hashes;
+	}
+
+	private long[] hashes(byte[] data) {
+		long[] hashes = new long[(data.length + blockSize - 1) / blockSize];
+		for (int i = 0; i < hashes.length; i++) {
+			int offset = i * blockSize;
+			hashes[i] = hash(data, offset, Math.min(blockSize, data.length - offset));
+		}
+		return hashes;
+	}
+
+	/*
+	 * 64 bit hash of a block, eight bytes at a time, finished with the murmur3 mixer.
+	 */
+	static long hash(byte[] data, int offset, int length) {
+		long h = 0x9E3779B97F4A7C15L ^ length;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			long k = (data[i] & 0xFFL) | (data[i + 1] & 0xFFL) << 8 | (data[i + 2] & 0xFFL) << 16
+					| (data[i + 3] & 0xFFL) << 24 | (data[i + 4] & 0xFFL) << 32 | (data[i + 5] & 0xFFL) << 40
+					| (data[i + 6] & 0xFFL) << 48 | (data[i + 7] & 0xFFL) << 56;
+			h = Long.rotateLeft(h ^ mix(k), 27) * 0x9E3779B97F4A7C15L;
+		}
+		for (; i < end; i++) {
+			h = (h ^ (data[i] & 0xFFL)) * 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+		z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return z ^ (z >>> 33);
+	}
+}
@@ -0,0 +1,168 @@
+package dataStorage;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Archive keeping one file per object, at <location><name>.
+ * This is the layout Scribe has always used, kept for existing saves.
+ */
+public class FileObjectArchive implements ObjectArchive {
+	private final String location;
+	
+	//names written since the last flush
+	private final Set<String> unsynced = ConcurrentHashMap.newKeySet();
+	
+	/*
+	 * Initializes archive saving to location followed by the object's name,
+	 * so location is usually a folder ending in a slash.
+	 */
+	public FileObjectArchive(String location) {
+		this.location = location;
+	}
+
+	@Override
+	public byte[] read(String name) throws IOException {
+		File f = new File(location + name);
+		if (!f.isFile()) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public void write(String name, byte[] data) throws IOException {
+		File f = new File(location + name);
+		f.getParentFile().mkdirs();
+		FileOutputStream fileOutput = new FileOutputStream(f);
+		try {
+			fileOutput.write(data);
+		} finally {
+			fileOutput.close();
+		}
+		unsynced.add(name);
+	}
+	
+	@Override
+	public InputStream openInput(String name) throws IOException {
+		File f = new File(location + name);
+		if (!f.isFile()) {
+			return null;
+		}
+		return new BufferedInputStream(new FileInputStream(f));
+	}
+	
+	/*
+	 * Writes to <name>.tmp, which is moved over the saved file when closed,
+	 * so readers never see a half written file, or deleted when aborted.
+	 */
+	@Override
+	public ArchiveOutputStream openOutput(final String name) throws IOException {
+		final File f = new File(location + name);
+		f.getParentFile().mkdirs();
+		final File temp = new File(location + name + ".tmp");
+		//not a FileOutputStream subclass, whose finalizer would close and so commit an abandoned stream
+		return new ArchiveOutputStream(new FileOutputStream(temp)) {
+			private boolean closed;
+			
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					out.close();
+				} catch (IOException e) {
+					temp.delete();
+					throw e;
+				}
+				Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				unsynced.add(name);
+			}
+			
+			@Override
+			public void abort() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				try {
+					out.close();
+				} finally {
+					temp.delete();
+				}
+			}
+		};
+	}
+	
+	/*
+	 * Forces the files written since the last flush to disk, then the folders
+	 * holding them, so the renames that replaced them are on disk too.
+	 */
+	@Override
+	public void flush() throws IOException {
+		Set<File> folders = new HashSet<File>();
+		Iterator<String> it = unsynced.iterator();
+		while (it.hasNext()) {
+			String name = it.next();
+			it.remove();
+			File f = new File(location + name);
+			if (!f.isFile()) {
+				continue;
+			}
+			FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.force(true);
+			} catch (IOException e) {
+				unsynced.add(name);
+				throw e;
+			} finally {
+				channel.close();
+			}
+			folders.add(f.getAbsoluteFile().getParentFile());
+		}
+		for (File folder : folders) {
+			forceFolder(folder);
+		}
+	}
+
+	private static void forceFolder(File folder) {
+		try {
+			FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			//folders cannot be opened or forced on Windows, where renames need no sync
+		}
+	}
+
+	@Override
+	public void close() {
+		//nothing is kept open
+	}
+}
@@ -0,0 +1,58 @@
+package dataStorage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/*
+ * Archive keeping one file per entry, at <folder>/<x>/<y>.txt.
+ * This is the layout PointMap has always used, kept for existing saves.
+ */
+public class FilePointArchive implements PointArchive {
+	private String folder;
+	
+	/*
+	 * Initializes archive saving into folder.
+	 */
+	public FilePointArchive(String folder) {
+		this.folder = folder;
+	}
+
+	@Override
+	public byte[] read(int x, int y) throws IOException {
+		File f = getFile(x, y);
+		if (!f.exists()) {
+			return null;
+		}
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			byte[] data = new byte[(int) file.length()];
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public void write(int x, int y, byte[] data) throws IOException {
+		File f = getFile(x, y);
+		f.getParentFile().mkdirs();
+		FileOutputStream fileOut = new FileOutputStream(f);
+		try {
+			fileOut.write(data);
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	@Override
+	public void close() {
+		//nothing is kept open
+	}
+	
+	private File getFile(int x, int y) {
+		return new File(folder + "/" + x + "/" + y + ".txt");
+	}
+}
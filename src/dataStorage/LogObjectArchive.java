@@ -0,0 +1,637 @@
+package dataStorage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/*
+ * Archive appending every saved object to one log file, <folder>/objects.log,
+ * instead of writing a file per object.
+ *
+ * A save is a single append into the memory mapped log, and a load is a single
+ * copy out of the mapping, found through an in-memory index of the latest record
+ * of each name. Records carry a checksum, so a save cut short by a crash is
+ * dropped when the log is opened again and the previous version is kept.
+ *
+ * The index is rebuilt by scanning the log. close() also writes it to
+ * <folder>/objects.idx, so the next open only scans what was appended since.
+ * Older versions stay in the log until it is compacted, which happens on a
+ * background thread once more than half of the log is stale, or on compact().
+ *
+ * Compaction writes the live records into the next generation of the log,
+ * <folder>/objects.<n>.log, and switches to it, so the old log is never replaced
+ * while it is mapped. The newest generation is the log, older ones left behind
+ * are deleted when it is opened.
+ *
+ * The log is limited to 2 GB, live and stale. Safe to share between threads.
+ */
+public class LogObjectArchive implements ObjectArchive {
+
+	private static final int MAGIC = 0x53434C47;
+	private static final int INDEX_MAGIC = 0x53434958;
+	private static final int VERSION = 1;
+
+	/*
+	 * bytes before the first record: magic, version and the log's id.
+	 */
+	private static final int PREAMBLE = 16;
+
+	/*
+	 * bytes before a record's name: checksum, name length and data length.
+	 * The checksum covers everything in the record after itself.
+	 */
+	private static final int RECORD_HEADER = 12;
+
+	/*
+	 * stale bytes the log must hold before it is compacted in the background.
+	 */
+	private static final long COMPACT_MIN_STALE = 1 << 20;
+
+	private static final int INITIAL_CAPACITY = 1 << 16;
+
+	private final File folder;
+	private final File indexFile;
+	private final File compactFile;
+	private final Random random;
+
+	/*
+	 * latest record of every name, guarded by this.
+	 */
+	private Map<String, Entry> index;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer mapped;
+
+	/*
+	 * generation of the open log, 0 is objects.log.
+	 */
+	private long generation;
+	private File logFile;
+
+	/*
+	 * random number identifying this version of the log, so an index file
+	 * written for an older log is not used.
+	 */
+	private long id;
+	private long end;
+	private long liveBytes;
+	private boolean compacting;
+
+	/*
+	 * Where a record lies in the log.
+	 */
+	private static final class Entry {
+		final long offset;
+		final int length;
+		final int nameLength;
+
+		Entry(long offset, int length, int nameLength) {
+			this.offset = offset;
+			this.length = length;
+			this.nameLength = nameLength;
+		}
+
+		long dataOffset() {
+			return offset + RECORD_HEADER + nameLength;
+		}
+
+		int dataLength() {
+			return length - RECORD_HEADER - nameLength;
+		}
+	}
+
+	/*
+	 * Initializes archive keeping its log in folder. Nothing is opened until first used.
+	 */
+	public LogObjectArchive(String folder) {
+		this.folder = new File(folder);
+		logFile = logFile(0);
+		indexFile = new File(folder, "objects.idx");
+		compactFile = new File(folder, "objects.compact");
+		random = new Random();
+		index = new HashMap<String, Entry>();
+	}
+
+	@Override
+	public synchronized byte[] read(String name) throws IOException {
+		open();
+		Entry entry = index.get(name);
+		if (entry == null) {
+			return null;
+		}
+		byte[] data = new byte[entry.dataLength()];
+		ByteBuffer in = mapped.duplicate();
+		in.position((int) entry.dataOffset());
+		in.get(data);
+		return data;
+	}
+
+	/*
+	 * Reads the whole batch under one lock, so saves in between are not interleaved.
+	 */
+	@Override
+	public synchronized byte[][] readAll(String[] names, int count) throws IOException {
+		byte[][] data = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			data[i] = read(names[i]);
+		}
+		return data;
+	}
+
+	@Override
+	public synchronized void write(String name, byte[] data) throws IOException {
+		open();
+		byte[] nameBytes = encodeName(name);
+		ensureCapacity(end + (long) RECORD_HEADER + nameBytes.length + data.length);
+		append(nameBytes, name, data);
+		compactIfStale();
+	}
+
+	/*
+	 * Appends the whole batch as one run of records, growing the mapping at most once.
+	 */
+	@Override
+	public synchronized void writeAll(String[] names, byte[][] data, int count) throws IOException {
+		open();
+		byte[][] nameBytes = new byte[count][];
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			nameBytes[i] = encodeName(names[i]);
+			length += (long) RECORD_HEADER + nameBytes[i].length + data[i].length;
+		}
+		ensureCapacity(end + length);
+		for (int i = 0; i < count; i++) {
+			append(nameBytes[i], names[i], data[i]);
+		}
+		compactIfStale();
+	}
+
+	/*
+	 * Forces the mapped log to disk.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (mapped != null) {
+			mapped.force();
+		}
+	}
+
+	/*
+	 * Waits for a running compaction, then forces the log to disk, trims it to
+	 * its records and writes the index file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		awaitCompaction();
+		if (channel == null) {
+			return;
+		}
+		mapped.force();
+		mapped = null;
+		try {
+			channel.truncate(end);
+		} finally {
+			channel.close();
+			file.close();
+			channel = null;
+		}
+		writeIndex();
+	}
+
+	/*
+	 * Rewrites the log with only the latest record of every name, waiting for a
+	 * compaction already running on the background thread instead if there is one.
+	 * Writers are only held up while the records saved during compaction are copied.
+	 */
+	public void compact() throws IOException {
+		synchronized (this) {
+			if (compacting) {
+				awaitCompaction();
+				return;
+			}
+			compacting = true;
+		}
+		compactNow();
+	}
+
+	/*
+	 * Returns the number of bytes held by older versions, which compaction frees.
+	 */
+	public synchronized long getStaleBytes() throws IOException {
+		open();
+		return end - PREAMBLE - liveBytes;
+	}
+
+	/*
+	 * Copies the live records into the next generation of the log and switches to
+	 * it. The bulk of the copy reads the old mapping without the lock, which is safe
+	 * as records are never changed once written and the old log stays open until
+	 * the switch. If anything fails before the switch, the old log stays in use.
+	 * Called with compacting set, clears it when done.
+	 */
+	private void compactNow() throws IOException {
+		RandomAccessFile out = null;
+		try {
+			Map<String, Entry> live;
+			ByteBuffer source;
+			synchronized (this) {
+				open();
+				live = new HashMap<String, Entry>(index);
+				source = mapped.duplicate();
+			}
+			out = new RandomAccessFile(compactFile, "rw");
+			out.setLength(0);
+			FileChannel target = out.getChannel();
+			long newId = random.nextLong();
+			writePreamble(target, newId);
+			long position = PREAMBLE;
+			Map<String, Entry> moved = new HashMap<String, Entry>();
+			for (Map.Entry<String, Entry> e : live.entrySet()) {
+				Entry entry = e.getValue();
+				copy(source, entry, target, position);
+				moved.put(e.getKey(), new Entry(position, entry.length, entry.nameLength));
+				position += entry.length;
+			}
+			synchronized (this) {
+				long movedBytes = 0;
+				Map<String, Entry> newIndex = new HashMap<String, Entry>();
+				for (Map.Entry<String, Entry> e : index.entrySet()) {
+					Entry entry = e.getValue();
+					Entry copied = live.get(e.getKey()) == entry ? moved.get(e.getKey()) : null;
+					if (copied == null) {
+						copy(mapped.duplicate(), entry, target, position);
+						copied = new Entry(position, entry.length, entry.nameLength);
+						position += entry.length;
+					}
+					newIndex.put(e.getKey(), copied);
+					movedBytes += entry.length;
+				}
+				target.force(true);
+				out.close();
+				out = null;
+				File next = logFile(generation + 1);
+				Files.move(compactFile.toPath(), next.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				RandomAccessFile nextFile = null;
+				MappedByteBuffer nextMapped;
+				try {
+					nextFile = new RandomAccessFile(next, "rw");
+					nextMapped = nextFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+							Math.max(position, INITIAL_CAPACITY));
+				} catch (IOException e) {
+					//keep using the old log, and drop the new one so it is not opened next time
+					if (nextFile != null) {
+						nextFile.close();
+					}
+					next.delete();
+					throw e;
+				}
+				indexFile.delete();
+				RandomAccessFile old = file;
+				File oldLog = logFile;
+				file = nextFile;
+				channel = nextFile.getChannel();
+				mapped = nextMapped;
+				generation++;
+				logFile = next;
+				index = newIndex;
+				id = newId;
+				end = position;
+				liveBytes = movedBytes;
+				try {
+					old.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				//fails while the old mapping is still around on some systems, open() retries it
+				oldLog.delete();
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+			//left over only if compaction failed
+			compactFile.delete();
+			synchronized (this) {
+				compacting = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Opens the log if it is not open, rebuilding the index.
+	 * Called with the lock held.
+	 */
+	private void open() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		folder.mkdirs();
+		openLatestGeneration();
+		openFile();
+		long size = channel.size();
+		index = new HashMap<String, Entry>();
+		liveBytes = 0;
+		if (size < PREAMBLE) {
+			id = random.nextLong();
+			writePreamble(channel, id);
+			end = PREAMBLE;
+			ensureCapacity(INITIAL_CAPACITY);
+			return;
+		}
+		if (size > Integer.MAX_VALUE) {
+			closeFile();
+			throw new IOException("Log is larger than 2 GB: " + logFile);
+		}
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+			closeFile();
+			throw new IOException("Not a log file: " + logFile);
+		}
+		id = mapped.getLong(8);
+		end = scan(readIndex(size), size);
+		if (end < size) {
+			//drop a record cut short by a crash, and anything after it
+			mapped = null;
+			channel.truncate(end);
+		}
+		ensureCapacity(Math.max(end, INITIAL_CAPACITY));
+	}
+
+	/*
+	 * Points logFile at the newest generation of the log in the folder,
+	 * and deletes older ones left behind by compaction.
+	 */
+	private void openLatestGeneration() {
+		File[] files = folder.listFiles();
+		long latest = 0;
+		if (files != null) {
+			for (File f : files) {
+				latest = Math.max(latest, generationOf(f.getName()));
+			}
+			for (File f : files) {
+				long g = generationOf(f.getName());
+				if (g >= 0 && g < latest) {
+					f.delete();
+				}
+			}
+		}
+		generation = latest;
+		logFile = logFile(latest);
+	}
+
+	/*
+	 * Returns the generation of the log named name, or -1 if it is not a log.
+	 */
+	private static long generationOf(String name) {
+		if (name.equals("objects.log")) {
+			return 0;
+		}
+		if (!name.startsWith("objects.") || !name.endsWith(".log")) {
+			return -1;
+		}
+		try {
+			long g = Long.parseLong(name.substring(8, name.length() - 4));
+			return g > 0 ? g : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File logFile(long generation) {
+		return new File(folder, generation == 0 ? "objects.log" : "objects." + generation + ".log");
+	}
+
+	private void openFile() throws IOException {
+		file = new RandomAccessFile(logFile, "rw");
+		channel = file.getChannel();
+	}
+
+	private void closeFile() throws IOException {
+		mapped = null;
+		channel.close();
+		file.close();
+		channel = null;
+	}
+
+	/*
+	 * Adds every intact record from position on to the index, and returns
+	 * where the intact records end.
+	 */
+	private long scan(long position, long size) {
+		while (position + RECORD_HEADER <= size) {
+			int p = (int) position;
+			int nameLength = mapped.getInt(p + 4);
+			int dataLength = mapped.getInt(p + 8);
+			if (nameLength <= 0 || dataLength < 0) {
+				break;
+			}
+			long length = (long) RECORD_HEADER + nameLength + dataLength;
+			if (position + length > size || checksum(mapped, p, (int) length) != mapped.getInt(p)) {
+				break;
+			}
+			byte[] nameBytes = new byte[nameLength];
+			ByteBuffer in = mapped.duplicate();
+			in.position(p + RECORD_HEADER);
+			in.get(nameBytes);
+			Entry old = index.put(new String(nameBytes, StandardCharsets.UTF_8),
+					new Entry(position, (int) length, nameLength));
+			if (old != null) {
+				liveBytes -= old.length;
+			}
+			liveBytes += length;
+			position += length;
+		}
+		return position;
+	}
+
+	/*
+	 * Loads the index file if it belongs to this log, and returns the position
+	 * it covers the log up to, where scanning continues.
+	 */
+	private long readIndex(long size) {
+		if (!indexFile.isFile()) {
+			return PREAMBLE;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != INDEX_MAGIC || in.readLong() != id) {
+					return PREAMBLE;
+				}
+				long covered = in.readLong();
+				if (covered < PREAMBLE || covered > size) {
+					return PREAMBLE;
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte[] nameBytes = new byte[in.readInt()];
+					in.readFully(nameBytes);
+					Entry entry = new Entry(in.readLong(), in.readInt(), nameBytes.length);
+					if (entry.offset < PREAMBLE || entry.dataLength() < 0 || entry.offset + entry.length > covered) {
+						throw new IOException("Bad index entry");
+					}
+					index.put(new String(nameBytes, StandardCharsets.UTF_8), entry);
+					liveBytes += entry.length;
+				}
+				return covered;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			//a damaged index file only costs a full scan
+			index.clear();
+			liveBytes = 0;
+			return PREAMBLE;
+		}
+	}
+
+	/*
+	 * Writes the index next to the log, replacing the old one in one step.
+	 */
+	private void writeIndex() throws IOException {
+		File temp = new File(folder, "objects.idx.tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(id);
+			out.writeLong(end);
+			out.writeInt(index.size());
+			for (Map.Entry<String, Entry> e : index.entrySet()) {
+				byte[] nameBytes = e.getKey().getBytes(StandardCharsets.UTF_8);
+				out.writeInt(nameBytes.length);
+				out.write(nameBytes);
+				out.writeLong(e.getValue().offset);
+				out.writeInt(e.getValue().length);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Writes one record at the end of the log, which must already be mapped.
+	 */
+	private void append(byte[] nameBytes, String name, byte[] data) {
+		int length = RECORD_HEADER + nameBytes.length + data.length;
+		int position = (int) end;
+		ByteBuffer out = mapped.duplicate();
+		out.position(position + 4);
+		out.putInt(nameBytes.length).putInt(data.length).put(nameBytes).put(data);
+		mapped.putInt(position, checksum(mapped, position, length));
+		Entry old = index.put(name, new Entry(end, length, nameBytes.length));
+		if (old != null) {
+			liveBytes -= old.length;
+		}
+		liveBytes += length;
+		end += length;
+	}
+
+	/*
+	 * Starts compaction on a background thread once older versions outweigh the live records.
+	 */
+	private void compactIfStale() {
+		if (compacting || end - PREAMBLE - liveBytes <= Math.max(COMPACT_MIN_STALE, liveBytes)) {
+			return;
+		}
+		compacting = true;
+		Thread compactor = new Thread("Scribe log compactor") {
+			@Override
+			public void run() {
+				try {
+					compactNow();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	private static byte[] encodeName(String name) {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if (nameBytes.length == 0) {
+			throw new IllegalArgumentException("Name must not be empty");
+		}
+		return nameBytes;
+	}
+
+	/*
+	 * Maps at least needed bytes of the log, growing the mapping by doubling.
+	 */
+	private void ensureCapacity(long needed) throws IOException {
+		if (needed > Integer.MAX_VALUE) {
+			throw new IOException("Log would pass 2 GB, compact it: " + logFile);
+		}
+		if (mapped != null && mapped.capacity() >= needed) {
+			return;
+		}
+		long capacity = mapped == null ? needed : Math.max(needed, Math.min((long) mapped.capacity() * 2,
+				Integer.MAX_VALUE));
+		mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	/*
+	 * Waits until no compaction is running. Called with the lock held.
+	 */
+	private void awaitCompaction() {
+		boolean interrupted = false;
+		while (compacting) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void writePreamble(FileChannel channel, long id) throws IOException {
+		ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE);
+		preamble.putInt(MAGIC).putInt(VERSION).putLong(id);
+		preamble.flip();
+		while (preamble.hasRemaining()) {
+			channel.write(preamble, preamble.position());
+		}
+	}
+
+	private static void copy(ByteBuffer source, Entry entry, FileChannel target, long position) throws IOException {
+		ByteBuffer record = source.duplicate();
+		record.limit((int) entry.offset + entry.length);
+		record.position((int) entry.offset);
+		while (record.hasRemaining()) {
+			position += target.write(record, position);
+		}
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer record = buffer.duplicate();
+		record.limit(offset + length);
+		record.position(offset + 4);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,467 @@
+package dataStorage;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * PointStore backed by an open addressing hash table.
+ * x and y are packed into a single long key, so no Point is created per call,
+ * and lookups are O(1) expected with linear probing over flat arrays.
+ *
+ * Removal uses backward shifting, so the table never fills with tombstones.
+ * The table is split into pages of up to 1024 slots. snapshot() shares every
+ * page with the copy, and a page is only copied when it is first written after
+ * the snapshot, so a snapshot costs one page copy per page that actually changes.
+ * Not thread safe.
+ */
+public class LongPointStore<V> implements PointStore<V> {
+
+	/*
+	 * Fraction of the table that may be filled before it is doubled.
+	 */
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/*
+	 * log2 of the largest page, in slots.
+	 */
+	private static final int PAGE_BITS = 10;
+
+	/*
+	 * packed keys by page, only meaningful where values holds a non null entry.
+	 */
+	private long[][] keys;
+
+	/*
+	 * values of the table by page, null marks an empty slot.
+	 */
+	private Object[][] values;
+
+	/*
+	 * epoch each page was created or copied in.
+	 */
+	private int[] pageEpochs;
+
+	private int length;
+	private int pageBits;
+	private int pageMask;
+	private int size;
+	private int mask;
+	private int resizeAt;
+
+	/*
+	 * bumped by every snapshot, pages from an older epoch may be shared
+	 * with a snapshot and are copied before they are written.
+	 */
+	private int epoch;
+
+	/*
+	 * true while the page arrays themselves are also used by a snapshot,
+	 * they are copied before the next change.
+	 */
+	private boolean shared;
+
+	/*
+	 * Initializes an empty store with the default capacity.
+	 */
+	public LongPointStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * Initializes an empty store that can hold expectedSize entries without growing.
+	 */
+	public LongPointStore(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	/*
+	 * Initializes a store sharing other's table.
+	 */
+	private LongPointStore(LongPointStore<V> other) {
+		keys = other.keys;
+		values = other.values;
+		pageEpochs = other.pageEpochs;
+		length = other.length;
+		pageBits = other.pageBits;
+		pageMask = other.pageMask;
+		size = other.size;
+		mask = other.mask;
+		resizeAt = other.resizeAt;
+		epoch = other.epoch;
+		shared = true;
+	}
+
+	/*
+	 * Packs an x, y pair into one long, x in the high half.
+	 */
+	public static long pack(int x, int y) {
+		return ((long) x << 32) | (y & 0xFFFFFFFFL);
+	}
+
+	/*
+	 * Returns the x half of a packed key.
+	 */
+	public static int unpackX(long key) {
+		return (int) (key >> 32);
+	}
+
+	/*
+	 * Returns the y half of a packed key.
+	 */
+	public static int unpackY(long key) {
+		return (int) key;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V get(int x, int y) {
+		long key = pack(x, y);
+		int i = slot(key);
+		Object value;
+		while ((value = values[i >>> pageBits][i & pageMask]) != null) {
+			if (keys[i >>> pageBits][i & pageMask] == key) {
+				return (V) value;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V put(int x, int y, V value) {
+		if (value == null) {
+			return remove(x, y);
+		}
+		long key = pack(x, y);
+		int i = slot(key);
+		Object old;
+		while ((old = values[i >>> pageBits][i & pageMask]) != null) {
+			if (keys[i >>> pageBits][i & pageMask] == key) {
+				set(i, key, value);
+				return (V) old;
+			}
+			i = (i + 1) & mask;
+		}
+		set(i, key, value);
+		if (++size > resizeAt) {
+			rehash(length << 1);
+		}
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public V remove(int x, int y) {
+		long key = pack(x, y);
+		int i = slot(key);
+		Object old;
+		while ((old = values[i >>> pageBits][i & pageMask]) != null) {
+			if (keys[i >>> pageBits][i & pageMask] == key) {
+				shiftBack(i);
+				size--;
+				return (V) old;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		if (shared) {
+			allocate(length);
+		} else {
+			for (int p = 0; p < values.length; p++) {
+				if (pageEpochs[p] == epoch) {
+					Arrays.fill(values[p], null);
+				} else {
+					keys[p] = new long[pageMask + 1];
+					values[p] = new Object[pageMask + 1];
+					pageEpochs[p] = epoch;
+				}
+			}
+		}
+		size = 0;
+	}
+
+	/*
+	 * O(1), the copy shares this store's pages until either of them is changed,
+	 * then the one being changed copies the list of pages once and each page
+	 * it writes to.
+	 */
+	@Override
+	public LongPointStore<V> snapshot() {
+		epoch++;
+		shared = true;
+		return new LongPointStore<V>(this);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void forEach(PointVisitor<? super V> visitor) {
+		long[][] keyPages = keys;
+		Object[][] valuePages = values;
+		for (int p = 0; p < valuePages.length; p++) {
+			long[] k = keyPages[p];
+			Object[] v = valuePages[p];
+			for (int i = 0; i < v.length; i++) {
+				if (v[i] != null) {
+					visitor.visit(unpackX(k[i]), unpackY(k[i]), (V) v[i]);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Probes every cell of the rectangle when it is smaller than the table,
+	 * and scans the table otherwise, so the cost is bounded by whichever is smaller.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void forEachInRect(int x0, int y0, int x1, int y1, PointVisitor<? super V> visitor) {
+		long width = (long) x1 - x0 + 1;
+		long height = (long) y1 - y0 + 1;
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		if (width < length && height < length && width * height < length) {
+			for (long y = y0; y <= y1; y++) {
+				for (long x = x0; x <= x1; x++) {
+					V value = get((int) x, (int) y);
+					if (value != null) {
+						visitor.visit((int) x, (int) y, value);
+					}
+				}
+			}
+			return;
+		}
+		long[][] keyPages = keys;
+		Object[][] valuePages = values;
+		for (int p = 0; p < valuePages.length; p++) {
+			long[] k = keyPages[p];
+			Object[] v = valuePages[p];
+			for (int i = 0; i < v.length; i++) {
+				if (v[i] != null) {
+					int x = unpackX(k[i]);
+					int y = unpackY(k[i]);
+					if (x >= x0 && x <= x1 && y >= y0 && y <= y1) {
+						visitor.visit(x, y, (V) v[i]);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Walks the table directly, and splits by halving the range of slots.
+	 * The store must not be changed while the spliterator is in use.
+	 */
+	@Override
+	public Spliterator<PointEntry<V>> spliterator() {
+		return spliterator(1024);
+	}
+
+	/*
+	 * Same as above, ranges of fewer than minSplit slots are not split further.
+	 */
+	Spliterator<PointEntry<V>> spliterator(int minSplit) {
+		return new SlotSpliterator<V>(keys, values, pageBits, 0, length, size, true, minSplit);
+	}
+
+	/*
+	 * Spliterator over a range of slots of the table.
+	 */
+	private static final class SlotSpliterator<V> implements Spliterator<PointEntry<V>> {
+
+		private final long[][] keys;
+		private final Object[][] values;
+		private final int pageBits;
+		private final int pageMask;
+		private int index;
+		private final int end;
+		private long estimate;
+		private boolean exact;
+		private final int minSplit;
+
+		SlotSpliterator(long[][] keys, Object[][] values, int pageBits, int index, int end, long estimate,
+				boolean exact, int minSplit) {
+			this.keys = keys;
+			this.values = values;
+			this.pageBits = pageBits;
+			pageMask = (1 << pageBits) - 1;
+			this.index = index;
+			this.end = end;
+			this.estimate = estimate;
+			this.exact = exact;
+			this.minSplit = Math.max(minSplit, 2);
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean tryAdvance(Consumer<? super PointEntry<V>> action) {
+			while (index < end) {
+				int i = index++;
+				Object value = values[i >>> pageBits][i & pageMask];
+				if (value != null) {
+					if (exact) {
+						estimate--;
+					}
+					long key = keys[i >>> pageBits][i & pageMask];
+					action.accept(new PointEntry<V>(unpackX(key), unpackY(key), (V) value));
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public void forEachRemaining(Consumer<? super PointEntry<V>> action) {
+			for (; index < end; index++) {
+				Object value = values[index >>> pageBits][index & pageMask];
+				if (value != null) {
+					long key = keys[index >>> pageBits][index & pageMask];
+					action.accept(new PointEntry<V>(unpackX(key), unpackY(key), (V) value));
+				}
+			}
+			estimate = 0;
+		}
+
+		@Override
+		public Spliterator<PointEntry<V>> trySplit() {
+			if (end - index < minSplit) {
+				return null;
+			}
+			int mid = (index + end) >>> 1;
+			long half = estimate >>> 1;
+			Spliterator<PointEntry<V>> prefix = new SlotSpliterator<V>(keys, values, pageBits, index, mid, half,
+					false, minSplit);
+			index = mid;
+			estimate -= half;
+			exact = false;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return estimate;
+		}
+
+		@Override
+		public int characteristics() {
+			return NONNULL | DISTINCT | (exact ? SIZED : 0);
+		}
+	}
+
+	/*
+	 * Fills the gap left at index gap by moving later entries of the same
+	 * probe run back, so lookups never stop early on an empty slot.
+	 */
+	private void shiftBack(int gap) {
+		int j = gap;
+		while (true) {
+			j = (j + 1) & mask;
+			Object value = values[j >>> pageBits][j & pageMask];
+			if (value == null) {
+				break;
+			}
+			long key = keys[j >>> pageBits][j & pageMask];
+			int home = slot(key);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				set(gap, key, value);
+				gap = j;
+			}
+		}
+		set(gap, 0, null);
+	}
+
+	/*
+	 * Stores key and value in slot i, copying its page first if it may be
+	 * shared with a snapshot.
+	 */
+	private void set(int i, long key, Object value) {
+		int p = i >>> pageBits;
+		if (pageEpochs[p] != epoch || shared) {
+			unshare(p);
+		}
+		keys[p][i & pageMask] = key;
+		values[p][i & pageMask] = value;
+	}
+
+	private void unshare(int p) {
+		if (shared) {
+			keys = keys.clone();
+			values = values.clone();
+			pageEpochs = pageEpochs.clone();
+			shared = false;
+		}
+		if (pageEpochs[p] != epoch) {
+			keys[p] = keys[p].clone();
+			values[p] = values[p].clone();
+			pageEpochs[p] = epoch;
+		}
+	}
+
+	private void rehash(int newLength) {
+		long[][] oldKeys = keys;
+		Object[][] oldValues = values;
+		allocate(newLength);
+		for (int p = 0; p < oldValues.length; p++) {
+			for (int i = 0; i < oldValues[p].length; i++) {
+				if (oldValues[p][i] != null) {
+					int j = slot(oldKeys[p][i]);
+					while (values[j >>> pageBits][j & pageMask] != null) {
+						j = (j + 1) & mask;
+					}
+					keys[j >>> pageBits][j & pageMask] = oldKeys[p][i];
+					values[j >>> pageBits][j & pageMask] = oldValues[p][i];
+				}
+			}
+		}
+	}
+
+	/*
+	 * Replaces the table with an empty one of length slots, in pages of this epoch.
+	 */
+	private void allocate(int length) {
+		this.length = length;
+		pageBits = Math.min(Integer.numberOfTrailingZeros(length), PAGE_BITS);
+		pageMask = (1 << pageBits) - 1;
+		int pages = length >>> pageBits;
+		keys = new long[pages][pageMask + 1];
+		values = new Object[pages][pageMask + 1];
+		pageEpochs = new int[pages];
+		Arrays.fill(pageEpochs, epoch);
+		mask = length - 1;
+		resizeAt = (int) (length * LOAD_FACTOR);
+		shared = false;
+	}
+
+	/*
+	 * Spreads the key bits (murmur3 finalizer) so that neighbouring
+	 * points do not land in neighbouring slots.
+	 */
+	private int slot(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	private static int tableSizeFor(int expectedSize) {
+		int needed = (int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR);
+		int length = Integer.highestOneBit(Math.max(needed, 2) - 1) << 1;
+		return Math.max(length, 2);
+	}
+}
@@ -0,0 +1,132 @@
+package dataStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+import dataStorage.StorageMetrics.Op;
+
+/*
+ * JMX view of a StorageMetrics, registered by StorageMetrics.register().
+ * Every operation gets Count, Failures, MeanNanos, P50Nanos, P99Nanos and
+ * MaxNanos attributes, i.e. LoadP99Nanos, next to BytesRead, BytesWritten
+ * and LoadMisses. reset() sets them back to zero.
+ */
+class MetricsMBean implements DynamicMBean {
+
+	private static final String[] STATS = { "Count", "Failures", "MeanNanos", "P50Nanos", "P99Nanos", "MaxNanos" };
+
+	private final StorageMetrics metrics;
+	private final MBeanInfo info;
+
+	MetricsMBean(StorageMetrics metrics) {
+		this.metrics = metrics;
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Op op : Op.values()) {
+			for (String stat : STATS) {
+				String type = stat.equals("MeanNanos") ? "double" : "long";
+				attributes.add(new MBeanAttributeInfo(name(op) + stat, type, stat + " of " + name(op), true, false,
+						false));
+			}
+		}
+		attributes.add(new MBeanAttributeInfo("BytesRead", "long", "Bytes read", true, false, false));
+		attributes.add(new MBeanAttributeInfo("BytesWritten", "long", "Bytes written", true, false, false));
+		attributes.add(new MBeanAttributeInfo("LoadMisses", "long", "Loads that found nothing", true, false, false));
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Sets every count back to zero",
+				new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+		info = new MBeanInfo(StorageMetrics.class.getName(), "Storage I/O metrics",
+				attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { reset }, null);
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		return getAttribute(metrics.snapshot(), attribute);
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		MetricsSnapshot snapshot = metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(snapshot, attribute)));
+			} catch (AttributeNotFoundException e) {
+				//unknown attributes are left out of the list
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if (actionName.equals("reset")) {
+			metrics.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+
+	private static Object getAttribute(MetricsSnapshot snapshot, String attribute)
+			throws AttributeNotFoundException {
+		if (attribute.equals("BytesRead")) {
+			return snapshot.getBytesRead();
+		} else if (attribute.equals("BytesWritten")) {
+			return snapshot.getBytesWritten();
+		} else if (attribute.equals("LoadMisses")) {
+			return snapshot.getLoadMisses();
+		}
+		for (Op op : Op.values()) {
+			if (!attribute.startsWith(name(op))) {
+				continue;
+			}
+			String stat = attribute.substring(name(op).length());
+			if (stat.equals("Count")) {
+				return snapshot.getCount(op);
+			} else if (stat.equals("Failures")) {
+				return snapshot.getFailures(op);
+			} else if (stat.equals("MeanNanos")) {
+				return snapshot.getMeanNanos(op);
+			} else if (stat.equals("P50Nanos")) {
+				return snapshot.getPercentileNanos(op, 50);
+			} else if (stat.equals("P99Nanos")) {
+				return snapshot.getPercentileNanos(op, 99);
+			} else if (stat.equals("MaxNanos")) {
+				return snapshot.getMaxNanos(op);
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	/*
+	 * GET becomes Get, as used in attribute names.
+	 */
+	private static String name(Op op) {
+		String name = op.name();
+		return name.charAt(0) + name.substring(1).toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,128 @@
+package dataStorage;
+
+import dataStorage.StorageMetrics.Op;
+
+/*
+ * Counts of a StorageMetrics at one point in time, from StorageMetrics.snapshot().
+ * Latencies are in nanoseconds. Percentiles come from power of two buckets, so
+ * they are accurate to within a factor of two, which is enough to tell a cache
+ * hit from a disk read.
+ */
+public class MetricsSnapshot {
+	private final long[] counts;
+	private final long[] failures;
+	private final long[] timed;
+	private final long[] totalNanos;
+	private final long[] maxNanos;
+	private final long[][] buckets;
+	private final long bytesRead;
+	private final long bytesWritten;
+	private final long loadMisses;
+
+	MetricsSnapshot(long[] counts, long[] failures, long[] timed, long[] totalNanos, long[] maxNanos,
+			long[][] buckets, long bytesRead, long bytesWritten, long loadMisses) {
+		this.counts = counts;
+		this.failures = failures;
+		this.timed = timed;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+		this.buckets = buckets;
+		this.bytesRead = bytesRead;
+		this.bytesWritten = bytesWritten;
+		this.loadMisses = loadMisses;
+	}
+
+	/*
+	 * Returns the number of calls to op.
+	 */
+	public long getCount(Op op) {
+		return counts[op.ordinal()];
+	}
+
+	/*
+	 * Returns the number of calls to op that failed with an I/O error.
+	 */
+	public long getFailures(Op op) {
+		return failures[op.ordinal()];
+	}
+
+	/*
+	 * Returns the number of calls to op that were timed, every call for disk
+	 * operations and a sample for get, put and remove.
+	 */
+	public long getTimedCount(Op op) {
+		return timed[op.ordinal()];
+	}
+
+	/*
+	 * Returns the average duration of op, or 0 if no call was timed.
+	 */
+	public double getMeanNanos(Op op) {
+		long n = timed[op.ordinal()];
+		return n == 0 ? 0 : (double) totalNanos[op.ordinal()] / n;
+	}
+
+	/*
+	 * Returns the longest duration of op.
+	 */
+	public long getMaxNanos(Op op) {
+		return maxNanos[op.ordinal()];
+	}
+
+	/*
+	 * Returns the duration percent of the timed calls to op stayed under,
+	 * i.e. getPercentileNanos(Op.LOAD, 99) for the 99th percentile.
+	 */
+	public long getPercentileNanos(Op op, double percent) {
+		long[] histogram = buckets[op.ordinal()];
+		long n = timed[op.ordinal()];
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * Math.max(0, Math.min(percent, 100)) / 100);
+		long seen = 0;
+		for (int b = 0; b < histogram.length; b++) {
+			seen += histogram[b];
+			if (seen >= Math.max(rank, 1)) {
+				return b == 0 ? 0 : Math.min(b < 63 ? 1L << b : Long.MAX_VALUE, maxNanos[op.ordinal()]);
+			}
+		}
+		return maxNanos[op.ordinal()];
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/*
+	 * Returns the number of loads that found nothing saved.
+	 */
+	public long getLoadMisses() {
+		return loadMisses;
+	}
+
+	/*
+	 * One line per operation that was called, then the byte counts.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Op op : Op.values()) {
+			if (getCount(op) == 0) {
+				continue;
+			}
+			text.append(op).append(": ").append(getCount(op)).append(" calls, ")
+					.append(getFailures(op)).append(" failed, mean ").append(Math.round(getMeanNanos(op)))
+					.append("ns, p50 ").append(getPercentileNanos(op, 50))
+					.append("ns, p99 ").append(getPercentileNanos(op, 99))
+					.append("ns, max ").append(getMaxNanos(op)).append("ns\n");
+		}
+		text.append("read ").append(bytesRead).append(" bytes, wrote ").append(bytesWritten)
+				.append(" bytes, ").append(loadMisses).append(" load misses");
+		return text.toString();
+	}
+}
@@ -0,0 +1,93 @@
+package dataStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * On-disk storage for the encoded objects of a Scribe, keyed by name.
+ * Like PointArchive, an archive only moves bytes, encoding is left to the Scribe.
+ */
+public interface ObjectArchive {
+	
+	/*
+	 * Returns the bytes last written under name, or null if nothing was saved as name.
+	 */
+	byte[] read(String name) throws IOException;
+	
+	/*
+	 * Stores data under name, replacing anything saved as name before.
+	 */
+	void write(String name, byte[] data) throws IOException;
+	
+	/*
+	 * Returns the bytes saved under each of the first count names, null where nothing was saved.
+	 * Archives that can serve the batch with less work than one read per name should override this.
+	 */
+	default byte[][] readAll(String[] names, int count) throws IOException {
+		byte[][] data = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			data[i] = read(names[i]);
+		}
+		return data;
+	}
+	
+	/*
+	 * Stores a batch of objects, data[i] under names[i].
+	 * Archives that can lay the batch out as one sequential write should override this.
+	 */
+	default void writeAll(String[] names, byte[][] data, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			write(names[i], data[i]);
+		}
+	}
+	
+	/*
+	 * Returns a stream over the bytes saved under name, or null if nothing was saved.
+	 * By default the bytes are read in full first, archives that can read
+	 * incrementally should override this.
+	 */
+	default InputStream openInput(String name) throws IOException {
+		byte[] data = read(name);
+		return data == null ? null : new ByteArrayInputStream(data);
+	}
+	
+	/*
+	 * Returns a stream whose bytes replace anything saved as name once it is closed,
+	 * or are dropped if it is aborted. By default the bytes are kept in memory
+	 * until then, archives that can write incrementally should override this.
+	 */
+	default ArchiveOutputStream openOutput(final String name) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		return new ArchiveOutputStream(bytes) {
+			private boolean closed;
+			
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					ObjectArchive.this.write(name, bytes.toByteArray());
+				}
+			}
+			
+			@Override
+			public void abort() {
+				closed = true;
+			}
+		};
+	}
+	
+	/*
+	 * Returns once everything written so far is in the archive's files.
+	 */
+	default void flush() throws IOException {
+		//nothing is buffered by default
+	}
+	
+	/*
+	 * Writes out anything still buffered and releases open files.
+	 * The archive may still be used afterwards, files are reopened as needed.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,193 @@
+package dataStorage;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Cache of loaded objects for a Scribe, set with Scribe.setCache(). Objects are
+ * kept by name in least recently used order and weighed by the size of their
+ * encoding, the oldest are dropped once there are more than maxEntries or they
+ * weigh more than maxBytes together. With soft values the garbage collector may
+ * also drop objects when memory runs low.
+ *
+ * Loads served from the cache return the same instance every time, so cached
+ * objects should be treated as read only. Save a changed copy instead, which
+ * drops the cached one.
+ */
+public class ObjectCache {
+	private final int maxEntries;
+	private final long maxBytes;
+	private final boolean softValues;
+	private final LinkedHashMap<String, Cached> entries;
+	private long bytes;
+	private long hits;
+	private long misses;
+
+	/*
+	 * bumped by every invalidation, so a load that read the archive before a
+	 * save finished does not put the old object back.
+	 */
+	private long version;
+
+	private static class Cached {
+		final Object value;
+		final int weight;
+
+		Cached(Object value, int weight, boolean soft) {
+			this.value = soft ? new SoftReference<Object>(value) : value;
+			this.weight = weight;
+		}
+
+		Object get() {
+			if (value instanceof SoftReference) {
+				return ((SoftReference<?>) value).get();
+			}
+			return value;
+		}
+	}
+
+	/*
+	 * Initializes cache holding at most maxEntries objects, strongly referenced.
+	 */
+	public ObjectCache(int maxEntries) {
+		this(maxEntries, Long.MAX_VALUE, false);
+	}
+
+	/*
+	 * Initializes cache holding at most maxEntries objects whose encodings weigh
+	 * at most maxBytes together. softValues lets the garbage collector drop
+	 * objects under memory pressure before either bound is reached.
+	 */
+	public ObjectCache(int maxEntries, long maxBytes, boolean softValues) {
+		if (maxEntries < 1 || maxBytes < 1) {
+			throw new IllegalArgumentException("Cache bounds must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.softValues = softValues;
+		entries = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+	}
+
+	/*
+	 * Returns the object cached as name, or null, counting a hit or a miss.
+	 * A cached null is indistinguishable from a miss, so nulls are not cached.
+	 */
+	public synchronized Object get(String name) {
+		Cached cached = entries.get(name);
+		Object value = cached == null ? null : cached.get();
+		if (value == null) {
+			if (cached != null) {
+				remove(name);
+			}
+			misses++;
+			return null;
+		}
+		hits++;
+		return value;
+	}
+
+	/*
+	 * Drops the object cached as name, if any.
+	 */
+	public synchronized void invalidate(String name) {
+		version++;
+		remove(name);
+	}
+
+	/*
+	 * Drops every cached object. Hit and miss counts are kept.
+	 */
+	public synchronized void clear() {
+		version++;
+		entries.clear();
+		bytes = 0;
+	}
+
+	/*
+	 * Returns the number of objects cached. Soft values the garbage collector
+	 * cleared are counted until they are next looked up or evicted.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/*
+	 * Returns the encoded size of the cached objects together.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * Returns the share of lookups served from the cache, between 0 and 1,
+	 * or 0 if nothing was looked up yet.
+	 */
+	public synchronized double getHitRatio() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/*
+	 * Sets the hit and miss counts back to zero.
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ObjectCache[" + entries.size() + " objects, " + bytes + " bytes, hit ratio "
+				+ String.format("%.3f", getHitRatio()) + "]";
+	}
+
+	/*
+	 * Returns the version to pass to put() for an object about to be read.
+	 */
+	synchronized long version() {
+		return version;
+	}
+
+	/*
+	 * Caches value as name, weighing weight bytes, unless something was
+	 * invalidated since version was taken. Objects heavier than the whole
+	 * cache are not kept.
+	 */
+	synchronized void put(String name, Object value, int weight, long version) {
+		if (value == null || version != this.version || weight > maxBytes) {
+			return;
+		}
+		remove(name);
+		entries.put(name, new Cached(value, weight, softValues));
+		bytes += weight;
+		evict();
+	}
+
+	private void remove(String name) {
+		Cached old = entries.remove(name);
+		if (old != null) {
+			bytes -= old.weight;
+		}
+	}
+
+	/*
+	 * Drops the least recently used objects until within bounds.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<String, Cached>> it = entries.entrySet().iterator();
+		while (it.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+			bytes -= it.next().getValue().weight;
+			it.remove();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package dataStorage;
+
+import java.io.IOException;
+
+/*
+ * On-disk storage for the encoded entries of a PointMap.
+ * An archive only moves bytes, turning values into bytes is left to the map.
+ */
+public interface PointArchive {
+	
+	/*
+	 * Returns the bytes last written for x, y, or null if nothing was saved there.
+	 */
+	byte[] read(int x, int y) throws IOException;
+	
+	/*
+	 * Stores data for x, y, replacing anything saved there before.
+	 */
+	void write(int x, int y, byte[] data) throws IOException;
+	
+	/*
+	 * Stores a batch of entries, keys are packed with LongPointStore.pack.
+	 * Archives that can lay the batch out as one sequential write should override this.
+	 */
+	default void writeAll(long[] keys, byte[][] data, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			write(LongPointStore.unpackX(keys[i]), LongPointStore.unpackY(keys[i]), data[i]);
+		}
+	}
+	
+	/*
+	 * Returns once everything written so far is in the archive's files.
+	 */
+	default void flush() throws IOException {
+		//nothing is buffered by default
+	}
+	
+	/*
+	 * Writes out anything still buffered and releases open files.
+	 * The archive may still be used afterwards, files are reopened as needed.
+	 */
+	void close() throws IOException;
+}
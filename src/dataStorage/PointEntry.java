@@ -0,0 +1,21 @@
+package dataStorage;
+
+/*
+ * A single entry of a PointMap, its coordinates and value.
+ * Entries are copies, changing the map does not change them.
+ */
+public class PointEntry<V> {
+	public final int x;
+	public final int y;
+	public final V value;
+	
+	public PointEntry(int x, int y, V value) {
+		this.x = x;
+		this.y = y;
+		this.value = value;
+	}
+	
+	public String toString() {
+		return "(" + x + ", " + y + ")=" + value;
+	}
+}
@@ -1,67 +1,332 @@
 package dataStorage;
 
 /*
- * This class wraps a Treemap, using a point as a key.
- * This remains efficient on a large scale due to treemap's sorting, 
+ * This class maps integer x, y coordinates to values.
+ * Entries are kept in a PointStore, by default a LongPointStore, which packs
+ * the coordinates into a single long key of a primitive hash table.
+ * This keeps get/put/remove O(1) without creating a Point for every call,
  * all important map functions are wrapped.
  * 
+ * Entries are saved through a PointArchive, by default one file per entry,
+ * or packed into region files with a RegionPointArchive, and encoded with a Codec.
+ * Cells changed since they were last saved are tracked, so saveDirty() only
+ * writes those. Calls and disk traffic can be measured with setMetrics().
+ * 
  * Generic value to map, point is always Integers.
  */
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import dataStorage.StorageMetrics.Op;
 
 public class PointMap<V> {
-	private TreeMap<Point, V> map;
+	private PointStore<V> map;
+	private final PointStore<Boolean> dirty;
+	//volatile, a PointPrefetcher reads and decodes on its own thread
+	private volatile PointArchive archive;
+	private volatile Codec codec = new SerialCodec();
+	private StorageMetrics metrics;
 
 	/*
-	 * Initializes map
+	 * counts writes to the archive. Each slot holds the count of the last write
+	 * to a cell hashed there, so a reader of the archive outside of load() can
+	 * tell whether what it read may have been replaced since, see writtenSince().
+	 */
+	private static final int WRITE_SLOTS = 1024;
+	private final AtomicLong writeEpoch = new AtomicLong();
+	private final AtomicLongArray writtenAt = new AtomicLongArray(WRITE_SLOTS);
+
+	/*
+	 * Initializes map with the default hash backed store
 	 */
 	public PointMap() {
-		map = new TreeMap<Point, V>();
+		this(new LongPointStore<V>());
+	}
+	
+	/*
+	 * Initializes map on top of the given store
+	 */
+	public PointMap(PointStore<V> store) {
+		this(store, new LongPointStore<Boolean>());
+	}
+	
+	/*
+	 * Initializes map on top of the given store, keeping dirty flags in dirty,
+	 * which must be thread safe if the store is.
+	 */
+	protected PointMap(PointStore<V> store, PointStore<Boolean> dirty) {
+		map = store;
+		this.dirty = dirty;
 	}
 
 	/*
-	 * wraps map's put function
+	 * wraps map's put function, marks x, y as changed since the last save
 	 */
 	public void put(int x, int y, V value) {
-		map.put(new Point(x, y), value);
+		StorageMetrics metrics = this.metrics;
+		if (metrics == null) {
+			map.put(x, y, value);
+		} else {
+			long start = metrics.start(Op.PUT);
+			map.put(x, y, value);
+			metrics.end(Op.PUT, start);
+		}
+		if (value != null) {
+			markDirty(x, y);
+		}
 	}
 
 	/*
 	 * wraps map's get function
 	 */
 	public V get(int x, int y) {
-		return map.get(new Point(x, y));
+		StorageMetrics metrics = this.metrics;
+		if (metrics == null) {
+			return map.get(x, y);
+		}
+		long start = metrics.start(Op.GET);
+		V value = map.get(x, y);
+		metrics.end(Op.GET, start);
+		return value;
 	}
 
 	/*
-	 * wraps map's remove function, ease of access for user
+	 * wraps map's remove function, ease of access for user. The entry is only
+	 * dropped from memory, whatever was saved for x, y stays in the archive,
+	 * so x, y is no longer dirty either.
 	 */
 	public V remove(int x, int y) {
-		return map.remove(new Point(x, y));
+		StorageMetrics metrics = this.metrics;
+		V value;
+		if (metrics == null) {
+			value = map.remove(x, y);
+		} else {
+			long start = metrics.start(Op.REMOVE);
+			value = map.remove(x, y);
+			metrics.end(Op.REMOVE, start);
+		}
+		dirty.remove(x, y);
+		return value;
+	}
+	
+	/*
+	 * Returns the number of entries currently in memory.
+	 */
+	public int size() {
+		return map.size();
 	}
 	
 	/*
 	 * Returns a list (java.util.List) of all values in this PointMap.
 	 */
 	public List<V> getAllEntries() {
-		List<V> list = new ArrayList<V>();
-		Iterator<Entry<Point, V>> it = map.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<Point, V> entry = (Entry<Point, V>) it.next();
-			list.add(entry.getValue());
-		}
+		final List<V> list = new ArrayList<V>(map.size());
+		map.forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				list.add(value);
+			}
+		});
+		return list;
+	}
+
+	/*
+	 * Calls visitor for every entry with its coordinates, without copying the map.
+	 * The map must not be changed by the visitor.
+	 */
+	public void forEach(PointVisitor<? super V> visitor) {
+		map.forEach(visitor);
+	}
+
+	/*
+	 * Returns the entries of the map, with their coordinates, for use in for-each loops.
+	 * The map must not be changed while iterating.
+	 */
+	public Iterable<PointEntry<V>> entries() {
+		return new Iterable<PointEntry<V>>() {
+			@Override
+			public Iterator<PointEntry<V>> iterator() {
+				return Spliterators.iterator(map.spliterator());
+			}
+		};
+	}
+
+	/*
+	 * Returns a sequential stream of the entries of the map, reading the live map.
+	 */
+	public Stream<PointEntry<V>> entryStream() {
+		return StreamSupport.stream(map.spliterator(), false);
+	}
+
+	/*
+	 * Returns a parallel stream of the entries of the map, reading the live map.
+	 * The store is split into ranges handled by different threads.
+	 */
+	public Stream<PointEntry<V>> parallelEntryStream() {
+		return StreamSupport.stream(map.spliterator(), true);
+	}
+
+	/*
+	 * Returns a sequential stream of the values of the map.
+	 */
+	public Stream<V> stream() {
+		return entryStream().map(new Function<PointEntry<V>, V>() {
+			@Override
+			public V apply(PointEntry<V> entry) {
+				return entry.value;
+			}
+		});
+	}
+
+	/*
+	 * Returns a parallel stream of the values of the map,
+	 * i.e. for aggregating over a large map on all cores.
+	 * The map must not be changed while the stream runs.
+	 */
+	public Stream<V> parallelStream() {
+		return stream().parallel();
+	}
+
+	/*
+	 * Returns a read only copy of the map as it is now, which other threads may
+	 * iterate or save while this map keeps changing. O(1) for the default and
+	 * chunked stores, see PointSnapshot.
+	 */
+	public PointSnapshot<V> snapshot() {
+		return new PointSnapshot<V>(map.snapshot());
+	}
+
+	/*
+	 * Returns all values inside the rectangle between x0, y0 and x1, y1, inclusive.
+	 * Corners may be given in any order.
+	 */
+	public List<V> queryRect(int x0, int y0, int x1, int y1) {
+		final List<V> list = new ArrayList<V>();
+		queryRect(x0, y0, x1, y1, new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				list.add(value);
+			}
+		});
+		return list;
+	}
+
+	/*
+	 * Calls visitor for every entry inside the rectangle between x0, y0 and x1, y1, inclusive.
+	 * Only the part of the store overlapping the rectangle is touched.
+	 */
+	public void queryRect(int x0, int y0, int x1, int y1, PointVisitor<? super V> visitor) {
+		map.forEachInRect(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1), visitor);
+	}
+
+	/*
+	 * Returns all values within distance r (inclusive) of x, y.
+	 */
+	public List<V> queryRadius(int x, int y, int r) {
+		final List<V> list = new ArrayList<V>();
+		queryRadius(x, y, r, new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				list.add(value);
+			}
+		});
 		return list;
 	}
 
+	/*
+	 * Calls visitor for every entry within distance r (inclusive) of x, y.
+	 */
+	public void queryRadius(final int cx, final int cy, int r, final PointVisitor<? super V> visitor) {
+		if (r < 0) {
+			return;
+		}
+		final long rSquared = (long) r * r;
+		map.forEachInRect(clamp((long) cx - r), clamp((long) cy - r), clamp((long) cx + r), clamp((long) cy + r),
+				new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				long dx = (long) x - cx;
+				long dy = (long) y - cy;
+				if (dx * dx + dy * dy <= rSquared) {
+					visitor.visit(x, y, value);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Returns the k values closest to x, y, nearest first.
+	 * Searches squares of growing size around x, y, so only the neighbourhood
+	 * holding the answer is touched, not the whole map.
+	 */
+	public List<V> nearest(final int cx, final int cy, int k) {
+		final List<Neighbour<V>> found = new ArrayList<Neighbour<V>>();
+		if (k <= 0 || map.size() == 0) {
+			return new ArrayList<V>();
+		}
+		long r = 1;
+		while (true) {
+			found.clear();
+			map.forEachInRect(clamp(cx - r), clamp(cy - r), clamp(cx + r), clamp(cy + r), new PointVisitor<V>() {
+				@Override
+				public void visit(int x, int y, V value) {
+					long dx = (long) x - cx;
+					long dy = (long) y - cy;
+					found.add(new Neighbour<V>(dx * dx + dy * dy, value));
+				}
+			});
+			boolean everything = found.size() >= map.size() || r >= (1L << 32);
+			if (found.size() >= k || everything) {
+				Collections.sort(found);
+				int n = Math.min(k, found.size());
+				//a point outside the square may still be closer than the k-th found,
+				//unless the k-th found lies within the circle the square encloses.
+				if (everything || found.get(n - 1).distance <= r * r) {
+					List<V> list = new ArrayList<V>(n);
+					for (int i = 0; i < n; i++) {
+						list.add(found.get(i).value);
+					}
+					return list;
+				}
+				r = Math.max(r + 1, (long) Math.ceil(Math.sqrt(found.get(n - 1).distance)));
+			} else {
+				r <<= 1;
+			}
+		}
+	}
+
+	/*
+	 * Candidate of a nearest neighbour search, ordered by squared distance.
+	 */
+	private static class Neighbour<V> implements Comparable<Neighbour<V>> {
+		final long distance;
+		final V value;
+
+		Neighbour(long distance, V value) {
+			this.distance = distance;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Neighbour<V> other) {
+			return Long.compare(distance, other.distance);
+		}
+	}
+
+	private static int clamp(long c) {
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, c));
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -69,115 +334,249 @@ public class PointMap<V> {
 	 * in form of[(<x, y>), ()...]
 	 */
 	public String toString() {
-		String array = "[";
-		Iterator<Entry<Point, V>> it = map.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<Point, V> entry = (Entry<Point, V>) it.next();
-			array += "(" + entry.getValue() + ")";
-			if (it.hasNext()) {
-				array += ", ";
+		final StringBuilder array = new StringBuilder("[");
+		map.forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				if (array.length() > 1) {
+					array.append(", ");
+				}
+				array.append("(").append(value).append(")");
+			}
+		});
+		array.append("]");
+		return array.toString();
+	}
+
+	/*
+	 * Returns the folder entries are saved to.
+	 */
+	protected String getSaveLocation() {
+		return System.getProperty("user.dir") + "/save";
+	}
+	
+	/*
+	 * Returns the archive entries are saved to, by default one file per entry
+	 * in the save folder. Safe to call from any thread.
+	 */
+	public PointArchive getArchive() {
+		PointArchive current = archive;
+		if (current == null) {
+			synchronized (this) {
+				if (archive == null) {
+					archive = new FilePointArchive(getSaveLocation());
+				}
+				current = archive;
 			}
 		}
-		array += "]";
-		return array;
+		return current;
+	}
+	
+	/*
+	 * Sets the archive entries are saved to and loaded from,
+	 * i.e. a RegionPointArchive to pack entries into region files.
+	 */
+	public synchronized void setArchive(PointArchive archive) {
+		this.archive = archive;
 	}
 
 	/*
 	 * Saves and unloads all entries on map.
 	 */
 	public void saveMap() {
-		String location = System.getProperty("user.dir") + "/save";
-		new File(location).mkdir();
-		Iterator<Entry<Point, V>> it = map.entrySet().iterator();
-		while (it.hasNext()) {
-			Entry<Point, V> entry = it.next();
-			unload(entry.getKey().x, entry.getKey().y);
-			it = map.entrySet().iterator();
+		final long[] keys = new long[map.size()];
+		map.forEach(new PointVisitor<V>() {
+			int i = 0;
+			
+			@Override
+			public void visit(int x, int y, V value) {
+				if (i < keys.length) {
+					keys[i++] = LongPointStore.pack(x, y);
+				}
+			}
+		});
+		for (long key : keys) {
+			unload(LongPointStore.unpackX(key), LongPointStore.unpackY(key));
 		}
+		flush();
 	}
-
+	
 	/*
-	 * Attempts to load entry from file, if entry does not exists, returns false
+	 * Unloads all entries on map, and writes them to disk in the background.
+	 * Entries are encoded on the calling thread, so later changes to the values
+	 * do not leak into the save, but no disk access happens on it.
+	 * 
+	 * The first call switches the map's archive to a WriteBehindArchive around
+	 * the current one, so later saves are also written behind, see flush().
+	 * The returned future completes once everything is written. If writing
+	 * fails the entries stay queued, so load() still finds them, and flush()
+	 * returns false until WriteBehindArchive.retry() succeeds.
 	 */
-	public boolean load(int x, int y) {
-		if (get(x, y) == null) {
-			String location = System.getProperty("user.dir") + "/save";
-			File f = new File(location);
-			if (f.exists()) {
-				return loadHelper(x, y, location);
-			} else {
-				f.mkdir();
-				return false;
+	public CompletableFuture<Void> saveMapAsync() {
+		final WriteBehindArchive writer = getWriteBehindArchive();
+		final long[] keys = new long[map.size()];
+		final byte[][] data = new byte[keys.length][];
+		final int[] count = new int[1];
+		final StorageMetrics metrics = this.metrics;
+		map.forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				if (count[0] < keys.length) {
+					long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+					try {
+						data[count[0]] = encode(value);
+						if (metrics != null) {
+							metrics.written(data[count[0]].length);
+						}
+						keys[count[0]++] = LongPointStore.pack(x, y);
+					} catch (IOException e) {
+						e.printStackTrace();
+						if (metrics != null) {
+							metrics.failed(Op.SAVE);
+						}
+					} finally {
+						if (metrics != null) {
+							metrics.end(Op.SAVE, start);
+						}
+					}
+				}
 			}
-		} else {
+		});
+		writer.writeAll(keys, data, count[0]);
+		for (int i = 0; i < count[0]; i++) {
+			stampWrite(LongPointStore.unpackX(keys[i]), LongPointStore.unpackY(keys[i]));
+			remove(LongPointStore.unpackX(keys[i]), LongPointStore.unpackY(keys[i]));
+		}
+		return writer.barrier();
+	}
+	
+	/*
+	 * Waits until every save so far has reached the archive's files.
+	 * Returns false if writing failed.
+	 */
+	public boolean flush() {
+		PointArchive current = archive;
+		if (current == null) {
+			return true;
+		}
+		try {
+			current.flush();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
 			return false;
 		}
 	}
+	
+	/*
+	 * Returns the map's archive as a WriteBehindArchive, wrapping it on first use.
+	 */
+	private synchronized WriteBehindArchive getWriteBehindArchive() {
+		PointArchive current = getArchive();
+		if (current instanceof WriteBehindArchive) {
+			return (WriteBehindArchive) current;
+		}
+		WriteBehindArchive writer = new WriteBehindArchive(current);
+		archive = writer;
+		return writer;
+	}
 
 	/*
-	 * Method to clean up load() method
+	 * Attempts to load entry from file, if entry does not exists, returns false
 	 */
-	private boolean loadHelper(int x, int y, String loc) {
-		loc += "/" + x;
-		File folder = new File(loc);
-		if (folder.exists()) {
+	public boolean load(int x, int y) {
+		if (map.get(x, y) == null) {
+			StorageMetrics metrics = this.metrics;
+			long start = metrics == null ? 0 : metrics.start(Op.LOAD);
 			try {
-				FileInputStream fileIn = new FileInputStream(loc + "/" + y + ".txt");
-				ObjectInputStream stream = new ObjectInputStream(fileIn);
+				byte[] data = getArchive().read(x, y);
+				if (data == null) {
+					if (metrics != null) {
+						metrics.missed();
+					}
+					return false;
+				}
+				if (metrics != null) {
+					metrics.read(data.length);
+				}
 				@SuppressWarnings("unchecked")
-				V value = (V) stream.readObject();
-				put(x, y, value);
-				stream.close();
-				fileIn.close();
-				return true;
+				V value = (V) decode(data);
+				return putLoaded(x, y, value);
 			} catch (Exception e) {
 				e.printStackTrace();
+				if (metrics != null) {
+					metrics.failed(Op.LOAD);
+				}
 				return false;
+			} finally {
+				if (metrics != null) {
+					metrics.end(Op.LOAD, start);
+				}
 			}
 		} else {
-			System.err.println("File " + x + " was not found, creating file.");
-			folder.mkdir();
 			return false;
 		}
 	}
 
 	/*
-	 * Saves and removes entry with matching x, y from map. Returns false if
-	 * entry does no exist.
+	 * Puts a value that was just read from the archive, unless an entry appeared
+	 * at x, y in the meantime. Returns true if the value was put.
 	 */
-	public boolean unload(int x, int y) {
-		String location = System.getProperty("user.dir") + "/save";
-		File f = new File(location);
-		if (f.exists()) {
-			return unloadHelper(x, y, location);
-		} else {
-			f.mkdir();
+	protected boolean putLoaded(int x, int y, V value) {
+		if (map.get(x, y) != null) {
 			return false;
 		}
+		put(x, y, value);
+		dirty.remove(x, y);
+		return true;
 	}
 
 	/*
-	 * Method to clean up unload() method.
+	 * Returns the current write epoch, to be taken before reading the archive
+	 * outside of load().
 	 */
-	private boolean unloadHelper(int x, int y, String loc) {
-		loc += "/" + x;
-		File folder = new File(loc);
-		if (folder.exists()) {
-			try {
-				FileOutputStream fileOut = new FileOutputStream(loc + "/" + y + ".txt");
-				ObjectOutputStream stream = new ObjectOutputStream(fileOut);
-				stream.writeObject(remove(x, y));
-				fileOut.close();
-				stream.close();
+	long writeEpoch() {
+		return writeEpoch.get();
+	}
+
+	/*
+	 * Returns true if x, y may have been written to the archive after epoch
+	 * was taken. Cells share slots, so this may also be true when it was not.
+	 */
+	boolean writtenSince(int x, int y, long epoch) {
+		return writtenAt.get(writeSlot(x, y)) > epoch;
+	}
+
+	/*
+	 * Records that x, y was just written to the archive. Called after the write,
+	 * so a reader that took its epoch before the write finished sees it.
+	 */
+	void stampWrite(int x, int y) {
+		writtenAt.set(writeSlot(x, y), writeEpoch.incrementAndGet());
+	}
+
+	private static int writeSlot(int x, int y) {
+		int h = x * 0x9E3779B1 + y;
+		return (h ^ h >>> 16) & (WRITE_SLOTS - 1);
+	}
+
+	/*
+	 * Saves and removes entry with matching x, y from map. Returns false if
+	 * entry does no exist.
+	 */
+	public boolean unload(int x, int y) {
+		StorageMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : metrics.start(Op.UNLOAD);
+		try {
+			if (save(x, y)) {
+				remove(x, y);
 				return true;
-			} catch (Exception e) {
-				e.printStackTrace();
-				return false;
 			}
-		} else {
-			System.err.println("File " + x + " was not found, creating file.");
-			folder.mkdir();
 			return false;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.UNLOAD, start);
+			}
 		}
 	}
 	
@@ -185,38 +584,127 @@ public class PointMap<V> {
 	 * Saves value at an x y position without unloading from map
 	 */
 	public boolean save(int x, int y) {
-		String location = System.getProperty("user.dir") + "/save";
-		File f = new File(location);
-		if (f.exists()) {
-			return saveHelper(x, y, location);
-		} else {
-			f.mkdir();
+		//the flag is cleared before the value is read, so a change made while
+		//saving marks the cell again instead of being lost.
+		dirty.remove(x, y);
+		V value = map.get(x, y);
+		if (value == null) {
 			return false;
 		}
+		StorageMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+		try {
+			byte[] data = encode(value);
+			getArchive().write(x, y, data);
+			stampWrite(x, y);
+			if (metrics != null) {
+				metrics.written(data.length);
+			}
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			dirty.put(x, y, Boolean.TRUE);
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+			}
+			return false;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.SAVE, start);
+			}
+		}
 	}
 	
 	/*
-	 * method to clean up save() method.
+	 * Saves, without unloading, every entry put since it was last saved or loaded,
+	 * so an autosave costs as much as what changed, not as the whole map.
+	 * Returns false if an entry could not be written, it stays dirty then.
 	 */
-	private boolean saveHelper(int x, int y, String loc) {
-		loc += "/" + x;
-		File folder = new File(loc);
-		if (folder.exists()) {
-			try {
-				FileOutputStream fileOut = new FileOutputStream(loc + "/" + y + ".txt");
-				ObjectOutputStream stream = new ObjectOutputStream(fileOut);
-				stream.writeObject(get(x, y));
-				fileOut.close();
-				stream.close();
-				return true;
-			} catch (Exception e) {
-				e.printStackTrace();
-				return false;
+	public boolean saveDirty() {
+		final long[] keys = new long[dirty.size()];
+		final int[] count = new int[1];
+		dirty.forEach(new PointVisitor<Boolean>() {
+			@Override
+			public void visit(int x, int y, Boolean value) {
+				if (count[0] < keys.length) {
+					keys[count[0]++] = LongPointStore.pack(x, y);
+				}
+			}
+		});
+		boolean saved = true;
+		for (int i = 0; i < count[0]; i++) {
+			int x = LongPointStore.unpackX(keys[i]);
+			int y = LongPointStore.unpackY(keys[i]);
+			if (!save(x, y) && map.get(x, y) != null) {
+				saved = false;
 			}
-		} else {
-			System.err.println("File " + x + " was not found, creating file.");
-			folder.mkdir();
-			return false;
 		}
+		return flush() && saved;
+	}
+	
+	/*
+	 * Marks x, y as changed, so the next saveDirty() writes it. put does this
+	 * already, call it after changing a value in place.
+	 */
+	public void markDirty(int x, int y) {
+		dirty.put(x, y, Boolean.TRUE);
+	}
+	
+	/*
+	 * Returns true if x, y changed since it was last saved or loaded.
+	 */
+	public boolean isDirty(int x, int y) {
+		return dirty.get(x, y) != null;
+	}
+	
+	/*
+	 * Returns the number of cells saveDirty() would write.
+	 */
+	public int dirtyCount() {
+		return dirty.size();
+	}
+	
+	/*
+	 * Returns the codec values are saved with, java serialization by default.
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+	
+	/*
+	 * Sets the codec values are saved with, i.e. a BinaryCodec (optionally inside
+	 * a DeflateCodec) for smaller, faster saves.
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+	
+	/*
+	 * Returns the metrics calls are recorded in, or null if they are not measured.
+	 */
+	public StorageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * Records calls and disk traffic of this map in metrics, or stops recording
+	 * if metrics is null. Set it before the map is shared with other threads.
+	 */
+	public void setMetrics(StorageMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/*
+	 * Turns a value into the bytes stored in the archive.
+	 */
+	protected byte[] encode(Object value) throws IOException {
+		return codec.encode(value);
+	}
+	
+	/*
+	 * Reads a value back from bytes made by encode().
+	 */
+	protected Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		return codec.decode(data);
 	}
 }
@@ -0,0 +1,431 @@
+package dataStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Loads the neighbourhood of one or more focus points (i.e. players) into a
+ * PointMap ahead of time, so gameplay code finds it in memory when it calls get.
+ *
+ * A background thread reads and decodes everything within a focus's radius,
+ * and within the same radius of where the focus is predicted to be, closest to
+ * the predicted position first. The direction of travel is estimated from the
+ * focus's recent moves.
+ * Decoded entries are handed over to the map by apply(), which should be called
+ * from the thread that owns the map, i.e. once per tick. apply() skips entries
+ * that are in memory by then or were saved since they were read, and unloads
+ * what the prefetcher loaded once it falls out of every focus's range.
+ * Combine with saveMapAsync (or a WriteBehindArchive) to keep those unloads off the disk too.
+ *
+ * On a ChunkedPointMap whole chunks are prefetched, otherwise single cells.
+ */
+public class PointPrefetcher<V> {
+
+	/*
+	 * number of moves ahead the predicted position is taken.
+	 */
+	private static final int LOOKAHEAD = 8;
+
+	/*
+	 * weight of the newest move in the velocity estimate.
+	 */
+	private static final double SMOOTHING = 0.5;
+
+	private final PointMap<V> map;
+	private final ChunkedPointMap<V> chunked;
+
+	/*
+	 * cells per prefetched unit along each axis, 1 for cells.
+	 */
+	private final int unitSize;
+
+	private final List<Focus> foci;
+
+	/*
+	 * units the prefetcher loaded and may unload again, owned by the apply() thread.
+	 */
+	private final LongPointStore<Boolean> resident;
+
+	/*
+	 * units handed to apply() or known to be missing from the archive, guarded by this.
+	 */
+	private final LongPointStore<Boolean> requested;
+
+	private final ConcurrentLinkedQueue<Loaded> ready;
+
+	private boolean dirty;
+	private Thread loader;
+
+	/*
+	 * A point whose surroundings are kept loaded.
+	 */
+	public class Focus {
+		private int x;
+		private int y;
+		private int radius;
+		private double velocityX;
+		private double velocityY;
+
+		private Focus(int x, int y, int radius) {
+			this.x = x;
+			this.y = y;
+			this.radius = radius;
+		}
+
+		/*
+		 * Moves the focus, updating its estimated direction of travel.
+		 */
+		public void moveTo(int x, int y) {
+			synchronized (PointPrefetcher.this) {
+				velocityX = velocityX * (1 - SMOOTHING) + ((long) x - this.x) * SMOOTHING;
+				velocityY = velocityY * (1 - SMOOTHING) + ((long) y - this.y) * SMOOTHING;
+				this.x = x;
+				this.y = y;
+				changed();
+			}
+		}
+
+		/*
+		 * Changes how far around the focus is kept loaded, in cells.
+		 */
+		public void setRadius(int radius) {
+			synchronized (PointPrefetcher.this) {
+				this.radius = radius;
+				changed();
+			}
+		}
+
+		public int getX() {
+			synchronized (PointPrefetcher.this) {
+				return x;
+			}
+		}
+
+		public int getY() {
+			synchronized (PointPrefetcher.this) {
+				return y;
+			}
+		}
+	}
+
+	/*
+	 * A decoded unit waiting for apply().
+	 */
+	private static final class Loaded {
+		final int x;
+		final int y;
+		final Object value;
+
+		/*
+		 * the map's write epoch taken before the unit was read.
+		 */
+		final long epoch;
+
+		Loaded(int x, int y, Object value, long epoch) {
+			this.x = x;
+			this.y = y;
+			this.value = value;
+			this.epoch = epoch;
+		}
+	}
+
+	/*
+	 * A unit waiting to be read, ordered by distance from the predicted position.
+	 */
+	private static final class Request implements Comparable<Request> {
+		final int x;
+		final int y;
+		final double priority;
+
+		Request(int x, int y, double priority) {
+			this.x = x;
+			this.y = y;
+			this.priority = priority;
+		}
+
+		@Override
+		public int compareTo(Request other) {
+			return Double.compare(priority, other.priority);
+		}
+	}
+
+	/*
+	 * Initializes a prefetcher for map, starts loading once a focus is added.
+	 */
+	@SuppressWarnings("unchecked")
+	public PointPrefetcher(PointMap<V> map) {
+		this.map = map;
+		if (map instanceof ChunkedPointMap) {
+			chunked = (ChunkedPointMap<V>) map;
+			unitSize = chunked.getChunkSize();
+		} else {
+			chunked = null;
+			unitSize = 1;
+		}
+		foci = new ArrayList<Focus>();
+		resident = new LongPointStore<Boolean>();
+		requested = new LongPointStore<Boolean>();
+		ready = new ConcurrentLinkedQueue<Loaded>();
+	}
+
+	/*
+	 * Adds a focus at x, y keeping everything within radius cells loaded.
+	 */
+	public synchronized Focus addFocus(int x, int y, int radius) {
+		Focus focus = new Focus(x, y, radius);
+		foci.add(focus);
+		changed();
+		return focus;
+	}
+
+	/*
+	 * Removes a focus, its surroundings are unloaded by the next apply() unless
+	 * another focus covers them.
+	 */
+	public synchronized void removeFocus(Focus focus) {
+		foci.remove(focus);
+		changed();
+	}
+
+	/*
+	 * Puts everything loaded in the background into the map, and unloads what the
+	 * prefetcher loaded earlier that is now out of range. Must be called from the
+	 * thread that uses the map. Returns the number of units put into the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public int apply() {
+		int applied = 0;
+		Loaded loaded;
+		while ((loaded = ready.poll()) != null) {
+			synchronized (this) {
+				if (!inRange(loaded.x, loaded.y, true)) {
+					requested.remove(loaded.x, loaded.y);
+					continue;
+				}
+				if (map.writtenSince(loaded.x, loaded.y, loaded.epoch)) {
+					//saved after it was read, read it again
+					requested.remove(loaded.x, loaded.y);
+					changed();
+					continue;
+				}
+			}
+			boolean put;
+			if (chunked != null) {
+				put = chunked.putLoadedChunk(loaded.x, loaded.y, (Object[]) loaded.value);
+			} else {
+				put = map.putLoaded(loaded.x, loaded.y, (V) loaded.value);
+			}
+			if (put) {
+				resident.put(loaded.x, loaded.y, Boolean.TRUE);
+				applied++;
+			}
+		}
+		unloadOutOfRange();
+		return applied;
+	}
+
+	/*
+	 * Stops the background loader. Entries already loaded stay in the map.
+	 */
+	public synchronized void stop() {
+		if (loader != null) {
+			loader.interrupt();
+			loader = null;
+		}
+	}
+
+	private void unloadOutOfRange() {
+		final List<Long> out = new ArrayList<Long>();
+		synchronized (this) {
+			resident.forEach(new PointVisitor<Boolean>() {
+				@Override
+				public void visit(int ux, int uy, Boolean value) {
+					if (!inRange(ux, uy, true)) {
+						out.add(LongPointStore.pack(ux, uy));
+					}
+				}
+			});
+			for (long key : out) {
+				requested.remove(LongPointStore.unpackX(key), LongPointStore.unpackY(key));
+			}
+		}
+		for (long key : out) {
+			int ux = LongPointStore.unpackX(key);
+			int uy = LongPointStore.unpackY(key);
+			resident.remove(ux, uy);
+			if (chunked != null) {
+				chunked.unloadChunk(ux, uy);
+			} else {
+				map.unload(ux, uy);
+			}
+		}
+	}
+
+	/*
+	 * Returns true if unit ux, uy is within range of a focus or of where it is
+	 * predicted to be. With slack, units
+	 * just outside the radius still count, so a focus moving back and forth on
+	 * the edge does not load and unload the same units over and over.
+	 */
+	private boolean inRange(int ux, int uy, boolean slack) {
+		for (Focus focus : foci) {
+			long r = unitRadius(focus) + (slack ? 1 + unitRadius(focus) / 4 : 0);
+			if (within(ux, uy, unit(focus.x), unit(focus.y), r)
+					|| within(ux, uy, aheadX(focus), aheadY(focus), r)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void changed() {
+		dirty = true;
+		if (loader == null && !foci.isEmpty()) {
+			loader = new Thread("PointMap prefetcher") {
+				@Override
+				public void run() {
+					loadLoop(this);
+				}
+			};
+			loader.setDaemon(true);
+			loader.start();
+		}
+		notifyAll();
+	}
+
+	/*
+	 * Rebuilds the queue whenever a focus changes, then reads units from it until
+	 * it is empty or a focus changes again.
+	 */
+	private void loadLoop(Thread self) {
+		PriorityQueue<Request> queue = new PriorityQueue<Request>();
+		while (true) {
+			Request next;
+			synchronized (this) {
+				while (!dirty && queue.isEmpty()) {
+					if (loader != self) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						if (loader != self) {
+							return;
+						}
+					}
+				}
+				if (loader != self) {
+					return;
+				}
+				if (dirty) {
+					dirty = false;
+					queue.clear();
+					fillQueue(queue);
+				}
+				next = queue.poll();
+				if (next == null || !inRange(next.x, next.y, false) || requested.get(next.x, next.y) != null) {
+					continue;
+				}
+				requested.put(next.x, next.y, Boolean.TRUE);
+			}
+			long epoch = map.writeEpoch();
+			Object value = read(next.x, next.y);
+			if (value != null) {
+				ready.add(new Loaded(next.x, next.y, value, epoch));
+			}
+		}
+	}
+
+	/*
+	 * Queues every unit within range of each focus, and of where the focus is
+	 * predicted to be, prioritised by distance from the predicted position.
+	 * Called with the lock held.
+	 */
+	private void fillQueue(PriorityQueue<Request> queue) {
+		final List<Long> out = new ArrayList<Long>();
+		requested.forEach(new PointVisitor<Boolean>() {
+			@Override
+			public void visit(int ux, int uy, Boolean value) {
+				if (!inRange(ux, uy, true)) {
+					out.add(LongPointStore.pack(ux, uy));
+				}
+			}
+		});
+		for (long key : out) {
+			requested.remove(LongPointStore.unpackX(key), LongPointStore.unpackY(key));
+		}
+		for (Focus focus : foci) {
+			long r = unitRadius(focus);
+			long ax = aheadX(focus);
+			long ay = aheadY(focus);
+			queueAround(queue, ax, ay, r, ax, ay, false);
+			queueAround(queue, unit(focus.x), unit(focus.y), r, ax, ay, true);
+		}
+	}
+
+	/*
+	 * Queues the units within r of cx, cy not requested yet, prioritised by
+	 * distance from ax, ay. With skipAhead, units within r of ax, ay are skipped,
+	 * they were queued around the predicted position already.
+	 */
+	private void queueAround(PriorityQueue<Request> queue, long cx, long cy, long r, long ax, long ay,
+			boolean skipAhead) {
+		for (long uy = cy - r; uy <= cy + r; uy++) {
+			for (long ux = cx - r; ux <= cx + r; ux++) {
+				if (!within(ux, uy, cx, cy, r) || ux != (int) ux || uy != (int) uy) {
+					continue;
+				}
+				if (skipAhead && within(ux, uy, ax, ay, r)) {
+					continue;
+				}
+				if (requested.get((int) ux, (int) uy) == null) {
+					double dx = ux - ax;
+					double dy = uy - ay;
+					queue.add(new Request((int) ux, (int) uy, dx * dx + dy * dy));
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns the unit the focus is predicted to be in LOOKAHEAD moves from now.
+	 */
+	private long aheadX(Focus focus) {
+		return unit(focus.x + focus.velocityX * LOOKAHEAD);
+	}
+
+	private long aheadY(Focus focus) {
+		return unit(focus.y + focus.velocityY * LOOKAHEAD);
+	}
+
+	private static boolean within(long ux, long uy, long cx, long cy, long r) {
+		long dx = ux - cx;
+		long dy = uy - cy;
+		return dx * dx + dy * dy <= r * r;
+	}
+
+	/*
+	 * Reads and decodes a unit from the map's archive, returns null if it was
+	 * never saved or could not be read.
+	 */
+	private Object read(int ux, int uy) {
+		try {
+			PointArchive archive = chunked != null ? chunked.getChunkArchive() : map.getArchive();
+			byte[] data = archive.read(ux, uy);
+			return data == null ? null : map.decode(data);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private long unitRadius(Focus focus) {
+		return (focus.radius + unitSize - 1) / unitSize;
+	}
+
+	private long unit(double c) {
+		return (long) Math.floor(c / unitSize);
+	}
+}
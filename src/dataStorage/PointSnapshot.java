@@ -0,0 +1,161 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Read only view of a PointMap frozen at the moment PointMap.snapshot() was called.
+ * Changes made to the map afterwards are not seen, so a render or save thread
+ * can walk a consistent picture of the map while the owning thread keeps writing.
+ *
+ * Taking a snapshot of a LongPointStore or ChunkedPointStore backed map is O(1),
+ * the map copies what it changes afterwards (the hash table, or single chunks).
+ * Take the snapshot on the thread that writes the map, then hand it to the reader,
+ * i.e. through a queue or a volatile field.
+ */
+public class PointSnapshot<V> {
+	private final PointStore<V> store;
+
+	PointSnapshot(PointStore<V> store) {
+		this.store = store;
+	}
+
+	/*
+	 * Returns the value at x, y when the snapshot was taken, or null.
+	 */
+	public V get(int x, int y) {
+		return store.get(x, y);
+	}
+
+	/*
+	 * Returns the number of entries in the snapshot.
+	 */
+	public int size() {
+		return store.size();
+	}
+
+	/*
+	 * Returns a list of all values in the snapshot.
+	 */
+	public List<V> getAllEntries() {
+		final List<V> list = new ArrayList<V>(store.size());
+		store.forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				list.add(value);
+			}
+		});
+		return list;
+	}
+
+	/*
+	 * Calls visitor for every entry with its coordinates.
+	 */
+	public void forEach(PointVisitor<? super V> visitor) {
+		store.forEach(visitor);
+	}
+
+	/*
+	 * Calls visitor for every entry inside the rectangle between x0, y0 and x1, y1,
+	 * inclusive. Corners may be given in any order.
+	 */
+	public void queryRect(int x0, int y0, int x1, int y1, PointVisitor<? super V> visitor) {
+		store.forEachInRect(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1), visitor);
+	}
+
+	/*
+	 * Returns a stream of the entries of the snapshot, which may be made parallel
+	 * freely, as nothing changes underneath it.
+	 */
+	public Stream<PointEntry<V>> entryStream() {
+		return StreamSupport.stream(store.spliterator(), false);
+	}
+
+	/*
+	 * Returns a stream of the values of the snapshot.
+	 */
+	public Stream<V> stream() {
+		return entryStream().map(new Function<PointEntry<V>, V>() {
+			@Override
+			public V apply(PointEntry<V> entry) {
+				return entry.value;
+			}
+		});
+	}
+
+	/*
+	 * Writes every entry to archive in one batch, encoded with codec, i.e.
+	 * map.snapshot().save(map.getArchive(), map.getCodec()) from a save thread.
+	 * Returns false if an entry could not be encoded or written.
+	 */
+	public boolean save(PointArchive archive, final Codec codec) {
+		final long[] keys = new long[store.size()];
+		final byte[][] data = new byte[keys.length][];
+		final boolean[] ok = { true };
+		store.forEach(new PointVisitor<V>() {
+			int i = 0;
+
+			@Override
+			public void visit(int x, int y, V value) {
+				try {
+					data[i] = codec.encode(value);
+					keys[i++] = LongPointStore.pack(x, y);
+				} catch (IOException e) {
+					e.printStackTrace();
+					ok[0] = false;
+				}
+			}
+		});
+		return write(archive, keys, data) && ok[0];
+	}
+
+	/*
+	 * Writes every chunk to archive keyed by chunk coordinate, in the layout
+	 * ChunkedPointMap.loadChunk reads, i.e. to its getChunkArchive().
+	 * The snapshot must come from a ChunkedPointMap.
+	 * Returns false if a chunk could not be encoded or written.
+	 */
+	public boolean saveChunks(PointArchive archive, final Codec codec) {
+		if (!(store instanceof ChunkedPointStore)) {
+			throw new IllegalStateException("Snapshot is not of a ChunkedPointMap");
+		}
+		ChunkedPointStore<V> chunks = (ChunkedPointStore<V>) store;
+		final long[] keys = new long[chunks.chunkCount()];
+		final byte[][] data = new byte[keys.length][];
+		final boolean[] ok = { true };
+		chunks.forEachChunk(new PointVisitor<Object[]>() {
+			int i = 0;
+
+			@Override
+			public void visit(int cx, int cy, Object[] cells) {
+				try {
+					data[i] = codec.encode(cells);
+					keys[i++] = LongPointStore.pack(cx, cy);
+				} catch (IOException e) {
+					e.printStackTrace();
+					ok[0] = false;
+				}
+			}
+		});
+		return write(archive, keys, data) && ok[0];
+	}
+
+	private static boolean write(PointArchive archive, long[] keys, byte[][] data) {
+		int count = 0;
+		while (count < data.length && data[count] != null) {
+			count++;
+		}
+		try {
+			archive.writeAll(keys, data, count);
+			archive.flush();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+}
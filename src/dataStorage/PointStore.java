@@ -0,0 +1,94 @@
+package dataStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+
+/*
+ * Storage backend used by PointMap. A PointStore maps integer x, y
+ * coordinates to values, and is free to choose its own layout.
+ * 
+ * Null values are never stored, putting null is the same as removing.
+ */
+public interface PointStore<V> {
+	
+	/*
+	 * Returns the value at x, y, or null if there is none.
+	 */
+	V get(int x, int y);
+	
+	/*
+	 * Stores value at x, y, returns the value previously there (or null).
+	 */
+	V put(int x, int y, V value);
+	
+	/*
+	 * Removes and returns the value at x, y (or null).
+	 */
+	V remove(int x, int y);
+	
+	/*
+	 * Returns the number of entries in the store.
+	 */
+	int size();
+	
+	/*
+	 * Removes every entry.
+	 */
+	void clear();
+	
+	/*
+	 * Calls visitor for every entry. The store must not be modified
+	 * by the visitor.
+	 */
+	void forEach(PointVisitor<? super V> visitor);
+	
+	/*
+	 * Calls visitor for every entry with x0 <= x <= x1 and y0 <= y <= y1.
+	 * The default walks every entry, stores with a spatial layout should
+	 * only touch the part of the store that overlaps the rectangle.
+	 */
+	default void forEachInRect(final int x0, final int y0, final int x1, final int y1,
+			final PointVisitor<? super V> visitor) {
+		forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				if (x >= x0 && x <= x1 && y >= y0 && y <= y1) {
+					visitor.visit(x, y, value);
+				}
+			}
+		});
+	}
+	
+	/*
+	 * Returns a Spliterator over the entries, used for streams.
+	 * The default copies the entries first, stores should override this to walk
+	 * their own layout and split it evenly for parallel streams.
+	 */
+	default Spliterator<PointEntry<V>> spliterator() {
+		final List<PointEntry<V>> entries = new ArrayList<PointEntry<V>>(size());
+		forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				entries.add(new PointEntry<V>(x, y, value));
+			}
+		});
+		return entries.spliterator();
+	}
+	
+	/*
+	 * Returns a store holding the entries as they are now, later changes to
+	 * either store are not seen by the other. The default copies every entry,
+	 * stores should override this to share their layout with the copy instead.
+	 */
+	default PointStore<V> snapshot() {
+		final LongPointStore<V> copy = new LongPointStore<V>(size());
+		forEach(new PointVisitor<V>() {
+			@Override
+			public void visit(int x, int y, V value) {
+				copy.put(x, y, value);
+			}
+		});
+		return copy;
+	}
+}
@@ -0,0 +1,13 @@
+package dataStorage;
+
+/*
+ * Callback used to walk the contents of a PointMap or PointStore
+ * without creating Point objects or entry copies.
+ */
+public interface PointVisitor<V> {
+	
+	/*
+	 * Called once for every entry, with the entry's coordinates and value.
+	 */
+	void visit(int x, int y, V value);
+}
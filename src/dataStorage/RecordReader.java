@@ -0,0 +1,130 @@
+package dataStorage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Reads back the records saved by a RecordWriter one at a time, opened with
+ * Scribe.openRecordReader(). Only the record being returned is held in memory,
+ * and records can be used before the rest have been read.
+ *
+ * As an Iterator cannot throw IOException, read errors are thrown as
+ * UncheckedIOException, as are records of a class that cannot be found.
+ * Records saved incompletely, i.e. by a writer that was never closed,
+ * fail with an EOFException after the last complete record.
+ */
+public class RecordReader<T> implements Iterator<T>, Closeable {
+	private final DataInputStream in;
+	private final Codec codec;
+	private final Class<T> type;
+	private final StorageMetrics metrics;
+	private T next;
+	private boolean ready;
+	private boolean done;
+
+	RecordReader(InputStream in, Codec codec, Class<T> type, StorageMetrics metrics) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.codec = codec;
+		this.type = type;
+		this.metrics = metrics;
+		try {
+			if (this.in.readInt() != RecordWriter.MAGIC || this.in.readInt() != RecordWriter.VERSION) {
+				throw new IOException("Not saved by a RecordWriter");
+			}
+		} catch (IOException e) {
+			this.in.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (!ready && !done) {
+			try {
+				advance();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return ready;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		T record = next;
+		next = null;
+		ready = false;
+		return record;
+	}
+
+	/*
+	 * Returns the remaining records as a stream, which closes the reader when closed.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							close();
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+	}
+
+	/*
+	 * Stops reading, the remaining records are skipped.
+	 */
+	@Override
+	public void close() throws IOException {
+		done = true;
+		ready = false;
+		next = null;
+		in.close();
+	}
+
+	private void advance() throws IOException {
+		int length;
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			close();
+			throw new EOFException("Records end without an end marker, they were not saved completely");
+		}
+		if (length == RecordWriter.END) {
+			close();
+			return;
+		}
+		if (length < 0) {
+			close();
+			throw new IOException("Corrupt record length " + length);
+		}
+		byte[] data = new byte[length];
+		in.readFully(data);
+		if (metrics != null) {
+			metrics.read(length + 4);
+		}
+		try {
+			next = type.cast(codec.decode(data));
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		ready = true;
+	}
+}
@@ -0,0 +1,137 @@
+package dataStorage;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import dataStorage.StorageMetrics.Op;
+
+/*
+ * Writes a sequence of records saved under one name, opened with
+ * Scribe.openRecordWriter() and read back with a RecordReader. Each record
+ * is encoded on its own as it is written, so memory use does not grow with
+ * the number of records, unlike saving the whole collection as one object.
+ * The records are only saved once the writer is closed, and not at all if a
+ * write failed or abort() was called.
+ *
+ * The saved form is a magic number and version, then per record its encoded
+ * length and bytes, then a length of -1 marking the end.
+ */
+public class RecordWriter implements Closeable {
+	static final int MAGIC = 0x53435253;
+	static final int VERSION = 1;
+	static final int END = -1;
+
+	private final ArchiveOutputStream target;
+	private final DataOutputStream out;
+	private final Codec codec;
+	private final StorageMetrics metrics;
+	private final long start;
+	private long count;
+	private boolean closed;
+	private boolean failed;
+
+	RecordWriter(ArchiveOutputStream target, Codec codec, StorageMetrics metrics) throws IOException {
+		this.target = target;
+		out = new DataOutputStream(new BufferedOutputStream(target));
+		this.codec = codec;
+		this.metrics = metrics;
+		start = metrics == null ? 0 : metrics.start(Op.SAVE);
+		this.out.writeInt(MAGIC);
+		this.out.writeInt(VERSION);
+	}
+
+	/*
+	 * Encodes and writes one record.
+	 */
+	public void write(Object record) throws IOException {
+		if (closed) {
+			throw new IOException("Record writer is closed");
+		}
+		byte[] data;
+		try {
+			data = codec.encode(record);
+			out.writeInt(data.length);
+			out.write(data);
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+			}
+			throw e;
+		}
+		if (metrics != null) {
+			metrics.written(data.length + 4);
+		}
+		count++;
+	}
+
+	/*
+	 * Writes every record of records in order.
+	 */
+	public void writeAll(Iterable<?> records) throws IOException {
+		for (Object record : records) {
+			write(record);
+		}
+	}
+
+	/*
+	 * Returns the number of records written so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/*
+	 * Marks the end of the records and saves them. If a write failed, the records
+	 * are dropped as by abort() instead, so a partial sequence is never saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (failed) {
+			abort();
+			return;
+		}
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			out.writeInt(END);
+			out.close();
+		} catch (IOException e) {
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+			}
+			try {
+				target.abort();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.SAVE, start);
+			}
+		}
+	}
+
+	/*
+	 * Stops writing and drops the records, whatever was saved under the name
+	 * before stays as it was.
+	 */
+	public void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (metrics != null) {
+			if (!failed) {
+				metrics.failed(Op.SAVE);
+			}
+			metrics.end(Op.SAVE, start);
+		}
+		target.abort();
+	}
+}
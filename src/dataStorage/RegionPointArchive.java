@@ -0,0 +1,313 @@
+package dataStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Archive packing a square block of entries into one region file, instead of
+ * one file per entry. Regions are saved at <folder>/region/<rx>.<ry>.dat.
+ *
+ * A region file starts with a header table holding, for every cell of the region,
+ * the offset, length and reserved capacity of its data. Data is overwritten in place
+ * when it fits, and appended to the end of the file otherwise.
+ * Reads and writes go through a memory mapping of the region file, so loading or
+ * saving an entry is a single copy once the region is open. The file is only
+ * mapped again when a read reaches past the mapping, after the file grew.
+ *
+ * Safe to share between threads, calls are serialized.
+ */
+public class RegionPointArchive implements PointArchive {
+
+	private static final int MAGIC = 0x504D5247;
+
+	/*
+	 * ints stored per cell in the header: offset, length, capacity.
+	 */
+	private static final int ENTRY_INTS = 3;
+
+	/*
+	 * bytes before the header table: magic and region size.
+	 */
+	private static final int PREAMBLE = 8;
+
+	/*
+	 * Regions kept open at once, all are closed when this is passed.
+	 */
+	private static final int MAX_OPEN_REGIONS = 64;
+
+	private final String folder;
+	private final int bits;
+	private final int mask;
+	private final int headerSize;
+	private final LongPointStore<Region> open;
+
+	/*
+	 * An open region file and its header table.
+	 */
+	private final class Region {
+		final RandomAccessFile file;
+		final FileChannel channel;
+		final int[] table;
+		long end;
+		MappedByteBuffer mapped;
+
+		Region(File f) throws IOException {
+			boolean exists = f.exists();
+			file = new RandomAccessFile(f, "rw");
+			channel = file.getChannel();
+			table = new int[ENTRY_INTS << (bits << 1)];
+			if (exists && channel.size() >= headerSize) {
+				readHeader(f);
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(headerSize);
+				header.putInt(MAGIC).putInt(mask + 1);
+				header.flip();
+				channel.write(header, 0);
+			}
+			end = Math.max(headerSize, channel.size());
+		}
+
+		private void readHeader(File f) throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+				//keep reading until the header is full
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != mask + 1) {
+				close();
+				throw new IOException(f + " is not a region file of size " + (mask + 1));
+			}
+			header.asIntBuffer().get(table);
+		}
+
+		byte[] read(int cell) throws IOException {
+			int offset = table[cell * ENTRY_INTS];
+			if (offset == 0) {
+				return null;
+			}
+			byte[] data = new byte[table[cell * ENTRY_INTS + 1]];
+			if (mapped == null || (long) offset + data.length > mapped.capacity()) {
+				mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			}
+			ByteBuffer view = mapped.duplicate();
+			view.position(offset);
+			view.get(data);
+			return data;
+		}
+
+		void write(int cell, byte[] data) throws IOException {
+			int i = cell * ENTRY_INTS;
+			long offset = table[i];
+			if (offset == 0 || data.length > table[i + 2]) {
+				offset = end;
+				if (offset + data.length > Integer.MAX_VALUE) {
+					throw new IOException("Region file is full");
+				}
+				end += data.length;
+				table[i + 2] = data.length;
+			}
+			writeAt(ByteBuffer.wrap(data), offset);
+			table[i] = (int) offset;
+			table[i + 1] = data.length;
+			ByteBuffer entry = ByteBuffer.allocate(ENTRY_INTS * 4);
+			entry.putInt(table[i]).putInt(table[i + 1]).putInt(table[i + 2]);
+			entry.flip();
+			writeAt(entry, PREAMBLE + i * 4L);
+		}
+
+		/*
+		 * Writes buffer, from its start, at position. Through the mapping if it
+		 * covers the range, the file is written directly otherwise.
+		 */
+		private void writeAt(ByteBuffer buffer, long position) throws IOException {
+			if (mapped != null && position + buffer.remaining() <= mapped.capacity()) {
+				ByteBuffer view = mapped.duplicate();
+				view.position((int) position);
+				view.put(buffer);
+				return;
+			}
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		}
+
+		/*
+		 * Writes several cells at once. Data that does not fit in place is laid out
+		 * back to back at the end of the file and written in one go, and the header
+		 * table is rewritten once for the whole batch.
+		 */
+		void writeBatch(int[] cells, byte[][] data, int from, int to) throws IOException {
+			int appended = 0;
+			for (int n = from; n < to; n++) {
+				int i = cells[n] * ENTRY_INTS;
+				if (table[i] == 0 || data[n].length > table[i + 2]) {
+					appended += data[n].length;
+				}
+			}
+			if (end + appended > Integer.MAX_VALUE) {
+				throw new IOException("Region file is full");
+			}
+			ByteBuffer tail = ByteBuffer.allocate(appended);
+			long tailStart = end;
+			for (int n = from; n < to; n++) {
+				int i = cells[n] * ENTRY_INTS;
+				if (table[i] == 0 || data[n].length > table[i + 2]) {
+					table[i] = (int) (tailStart + tail.position());
+					table[i + 2] = data[n].length;
+					tail.put(data[n]);
+				} else if (table[i] >= tailStart) {
+					//the same cell came earlier in this batch, overwrite it in the tail
+					ByteBuffer slot = tail.duplicate();
+					slot.position((int) (table[i] - tailStart));
+					slot.put(data[n]);
+				} else {
+					writeAt(ByteBuffer.wrap(data[n]), table[i]);
+				}
+				table[i + 1] = data[n].length;
+			}
+			tail.flip();
+			end += tail.limit();
+			writeAt(tail, tailStart);
+			ByteBuffer header = ByteBuffer.allocate(table.length * 4);
+			header.asIntBuffer().put(table);
+			writeAt(header, PREAMBLE);
+		}
+
+		void close() throws IOException {
+			mapped = null;
+			file.close();
+		}
+	}
+
+	/*
+	 * Initializes archive saving into folder, with 32x32 entries per region file.
+	 */
+	public RegionPointArchive(String folder) {
+		this(folder, 32);
+	}
+
+	/*
+	 * Initializes archive saving into folder, with regionSize x regionSize entries
+	 * per region file. regionSize must be a power of two.
+	 */
+	public RegionPointArchive(String folder, int regionSize) {
+		if (regionSize < 1 || Integer.bitCount(regionSize) != 1) {
+			throw new IllegalArgumentException("Region size must be a power of two: " + regionSize);
+		}
+		this.folder = folder;
+		bits = Integer.numberOfTrailingZeros(regionSize);
+		mask = regionSize - 1;
+		headerSize = PREAMBLE + (ENTRY_INTS * 4 << (bits << 1));
+		open = new LongPointStore<Region>();
+	}
+
+	@Override
+	public synchronized byte[] read(int x, int y) throws IOException {
+		Region region = getRegion(x >> bits, y >> bits, false);
+		if (region == null) {
+			return null;
+		}
+		return region.read(cell(x, y));
+	}
+
+	@Override
+	public synchronized void write(int x, int y, byte[] data) throws IOException {
+		getRegion(x >> bits, y >> bits, true).write(cell(x, y), data);
+	}
+
+	/*
+	 * Groups the batch by region, and writes each region's part with one
+	 * sequential write for new data and one write of its header table.
+	 */
+	@Override
+	public synchronized void writeAll(final long[] keys, byte[][] data, int count) throws IOException {
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(regionKey(keys[a]), regionKey(keys[b]));
+			}
+		});
+		int[] cells = new int[count];
+		byte[][] sorted = new byte[count][];
+		for (int n = 0; n < count; n++) {
+			long key = keys[order[n]];
+			cells[n] = cell(LongPointStore.unpackX(key), LongPointStore.unpackY(key));
+			sorted[n] = data[order[n]];
+		}
+		int from = 0;
+		while (from < count) {
+			long region = regionKey(keys[order[from]]);
+			int to = from + 1;
+			while (to < count && regionKey(keys[order[to]]) == region) {
+				to++;
+			}
+			getRegion(LongPointStore.unpackX(region), LongPointStore.unpackY(region), true)
+					.writeBatch(cells, sorted, from, to);
+			from = to;
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		final IOException[] failure = new IOException[1];
+		open.forEach(new PointVisitor<Region>() {
+			@Override
+			public void visit(int rx, int ry, Region region) {
+				try {
+					region.close();
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		});
+		open.clear();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+	}
+
+	/*
+	 * Returns the open region rx, ry, opening or creating its file as needed.
+	 * Returns null if create is false and the region was never written.
+	 */
+	private Region getRegion(int rx, int ry, boolean create) throws IOException {
+		Region region = open.get(rx, ry);
+		if (region != null) {
+			return region;
+		}
+		File f = new File(folder + "/region/" + rx + "." + ry + ".dat");
+		if (!f.exists()) {
+			if (!create) {
+				return null;
+			}
+			f.getParentFile().mkdirs();
+		}
+		if (open.size() >= MAX_OPEN_REGIONS) {
+			close();
+		}
+		region = new Region(f);
+		open.put(rx, ry, region);
+		return region;
+	}
+
+	/*
+	 * Packed coordinate of the region holding the packed entry key.
+	 */
+	private long regionKey(long key) {
+		return LongPointStore.pack(LongPointStore.unpackX(key) >> bits, LongPointStore.unpackY(key) >> bits);
+	}
+
+	private int cell(int x, int y) {
+		return ((y & mask) << bits) | (x & mask);
+	}
+}
@@ -4,20 +4,59 @@
 package dataStorage;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.NotSerializableException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+import dataStorage.StorageMetrics.Op;
 
 /*
  * This class adds easy functionality for saving and loading objects
  * save/load based on name, adds new "save" file to directory
+ * Bytes are kept by an ObjectArchive, one file per object unless set otherwise.
+ * Saves and loads can also run in the background on a small pool of I/O threads,
+ * or in batches that hand the archive many objects at once.
+ * Transactions from beginTransaction() save several objects durably as a whole,
+ * through a write-ahead log kept in the save folder as scribe.wal.
+ * Large collections can be saved and loaded a record at a time with
+ * saveRecords() and loadRecords() instead of as one object.
  */
 
 public class Scribe {
+	//threads of the default executor
+	private static final int IO_THREADS = 4;
+	
+	//fewest objects saveAll and loadAll hand to one thread
+	private static final int MIN_BATCH = 16;
+	
+	//file in the save folder transactions are logged to
+	private static final String LOG_NAME = "scribe.wal";
+	
+	//size at which a commit empties the write-ahead log
+	private static final long CHECKPOINT_BYTES = 16 << 20;
+	
 	//name of folder objects are to be saved to
 	private String saveFolder;
 	
@@ -25,6 +64,48 @@ public class Scribe {
 	//it is being run from.
 	private boolean inDirectory;
 	
+	//turns objects into bytes and back
+	private Codec codec = new SerialCodec();
+	
+	//records saves and loads when set
+	private StorageMetrics metrics;
+	
+	//where the bytes go, one file per object in the save folder when null
+	private ObjectArchive archive;
+	
+	//the archive used when none is set, kept so it can be flushed
+	private FileObjectArchive defaultArchive;
+	
+	//set once delta saves were turned on, getArchive() then wraps the archive so
+	//patches still load after they are turned off
+	private boolean deltaWrapped;
+	private boolean deltaSaves;
+	
+	//the wrap around the current archive, made again when the archive or folder changes
+	private DeltaObjectArchive deltaArchive;
+	
+	//transactions are made durable here before reaching the archive, opened on first use
+	private WriteAheadLog log;
+	
+	//commits share the log, checkpoints and replay need it to themselves
+	private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+	
+	//set once a log left by an earlier run was replayed
+	private volatile boolean recovered;
+	
+	//names committed to the log since it was last emptied, the log is emptied
+	//before any of them is saved again outside a transaction
+	private final Set<String> logged = ConcurrentHashMap.newKeySet();
+	
+	//loaded objects kept for repeated loads when set
+	private ObjectCache cache;
+	
+	//runs async saves and loads and batches, IO_THREADS daemon threads when null
+	private Executor executor;
+	
+	//last async call for each name not yet done, calls for the same name wait on it
+	private final ConcurrentHashMap<String, CompletableFuture<?>> pending = new ConcurrentHashMap<String, CompletableFuture<?>>();
+	
 	/*
 	 * Sets saveFolder to "save" and inDirectory to true by default
 	 */
@@ -42,38 +123,474 @@ public class Scribe {
 	}
 	
 	/*
-	 * Saves an object using objectOutputStream
+	 * Saves an object using the codec, java serialization by default
 	 * the name given should be the same one used to load.
 	 */
 	public void saveObject(Object object, String name) throws IOException {
-		if (!(object instanceof Serializable)) throw new NotSerializableException();
-		
-		String location = getFileLocation() + name;
-		
-		File f = new File(location);
-		f.getParentFile().mkdirs();
-		FileOutputStream fileOutput = new FileOutputStream(f);
-		ObjectOutputStream objectOutput = new ObjectOutputStream(fileOutput);
-		objectOutput.writeObject(object);
-		objectOutput.close();
-		fileOutput.close();
-		System.out.println("Object " + name + " saved.");
+		awaitPending(name);
+		StorageMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+		byte[] data;
+		try {
+			data = codec.encode(object);
+		} catch (IOException e) {
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+				metrics.end(Op.SAVE, start);
+			}
+			throw e;
+		}
+		write(name, data, metrics, start);
 	}
 	
 	/*
-	 * Loads an object using objectInputStream
+	 * Loads an object using the codec
 	 * name given should be an already saved object.
 	 */
 	public Object loadObject(String name) throws ClassNotFoundException, IOException {
-		String location = getFileLocation() + name;
-		
-		FileInputStream fileInput = new FileInputStream(location);
-		ObjectInputStream objectInput = new ObjectInputStream(fileInput);
-		Object object = objectInput.readObject();
-		objectInput.close();
-		fileInput.close();
-		System.out.println("Object " + name + " loaded.");
-		return object;
+		awaitPending(name);
+		return read(name);
+	}
+	
+	/*
+	 * Saves an object on the executor. The object is encoded before this returns,
+	 * so it may be changed right away without affecting what is saved.
+	 * Async saves and loads of the same name run in the order they were called.
+	 * The future fails with the IOException if the save does.
+	 */
+	public CompletableFuture<Void> saveObjectAsync(Object object, final String name) {
+		final StorageMetrics metrics = this.metrics;
+		final long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+		final byte[] data;
+		try {
+			data = codec.encode(object);
+		} catch (IOException e) {
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+				metrics.end(Op.SAVE, start);
+			}
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return after(name, new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				write(name, data, metrics, start);
+				return null;
+			}
+		});
+	}
+	
+	/*
+	 * Loads an object on the executor, after any async save of name called before.
+	 * The future fails with FileNotFoundException if nothing was saved as name.
+	 */
+	public CompletableFuture<Object> loadObjectAsync(final String name) {
+		return after(name, new Callable<Object>() {
+			@Override
+			public Object call() throws IOException, ClassNotFoundException {
+				return read(name);
+			}
+		});
+	}
+	
+	/*
+	 * Saves every object in objects under its key and returns once all are saved.
+	 * Objects are encoded on the calling thread in batches, each batch is handed
+	 * to the archive in one writeAll on the executor while the next is encoded.
+	 * If one fails, the others are still saved before the IOException is thrown.
+	 */
+	public void saveAll(Map<String, ?> objects) throws IOException {
+		int count = objects.size();
+		if (count == 0) {
+			return;
+		}
+		recover();
+		if (!logged.isEmpty()) {
+			for (String name : objects.keySet()) {
+				if (logged.contains(name)) {
+					checkpoint();
+					break;
+				}
+			}
+		}
+		final StorageMetrics metrics = this.metrics;
+		final ObjectArchive archive = getArchive();
+		int batch = batchSize(count);
+		List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>();
+		IOException failure = null;
+		String[] names = new String[Math.min(batch, count)];
+		byte[][] data = new byte[names.length][];
+		long[] starts = new long[names.length];
+		int n = 0;
+		int left = count;
+		for (Map.Entry<String, ?> entry : objects.entrySet()) {
+			left--;
+			String name = entry.getKey();
+			awaitPending(name);
+			long start = metrics == null ? 0 : metrics.start(Op.SAVE);
+			try {
+				data[n] = codec.encode(entry.getValue());
+			} catch (IOException e) {
+				if (metrics != null) {
+					metrics.failed(Op.SAVE);
+					metrics.end(Op.SAVE, start);
+				}
+				if (failure == null) {
+					failure = e;
+				}
+				continue;
+			}
+			names[n] = name;
+			starts[n++] = start;
+			if (n == names.length && left > 0) {
+				final String[] batchNames = names;
+				final byte[][] batchData = data;
+				final long[] batchStarts = starts;
+				final int batchCount = n;
+				writes.add(submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						writeBatch(archive, batchNames, batchData, batchStarts, batchCount, metrics);
+						return null;
+					}
+				}));
+				names = new String[Math.min(batch, left)];
+				data = new byte[names.length][];
+				starts = new long[names.length];
+				n = 0;
+			}
+		}
+		//the last batch is written here rather than waiting idle
+		try {
+			writeBatch(archive, names, data, starts, n, metrics);
+		} catch (IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		for (CompletableFuture<Void> write : writes) {
+			try {
+				write.join();
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = (IOException) unwrap(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		System.out.println("Saved " + count + " objects.");
+	}
+	
+	/*
+	 * Loads every named object and returns them by name. Names nothing was saved
+	 * as are left out of the map. Batches of names are read with one readAll each
+	 * and decoded in parallel on the executor, those already cached are not read.
+	 */
+	public Map<String, Object> loadAll(Collection<String> names) throws IOException, ClassNotFoundException {
+		recover();
+		final StorageMetrics metrics = this.metrics;
+		final ObjectArchive archive = getArchive();
+		ObjectCache cache = this.cache;
+		Map<String, Object> objects = new HashMap<String, Object>();
+		List<String> toRead = new ArrayList<String>();
+		for (String name : new LinkedHashSet<String>(names)) {
+			awaitPending(name);
+			Object cached = cache == null ? null : cache.get(name);
+			if (cached != null) {
+				objects.put(name, cached);
+			} else {
+				toRead.add(name);
+			}
+		}
+		final String[] unique = toRead.toArray(new String[0]);
+		int batch = batchSize(unique.length);
+		List<CompletableFuture<Map<String, Object>>> reads = new ArrayList<CompletableFuture<Map<String, Object>>>();
+		int from = 0;
+		for (; unique.length - from > batch; from += batch) {
+			final String[] batchNames = new String[batch];
+			System.arraycopy(unique, from, batchNames, 0, batch);
+			reads.add(submit(new Callable<Map<String, Object>>() {
+				@Override
+				public Map<String, Object> call() throws IOException, ClassNotFoundException {
+					return readBatch(archive, batchNames, metrics);
+				}
+			}));
+		}
+		String[] last = new String[unique.length - from];
+		System.arraycopy(unique, from, last, 0, last.length);
+		Exception failure = null;
+		try {
+			objects.putAll(readBatch(archive, last, metrics));
+		} catch (IOException | ClassNotFoundException e) {
+			failure = e;
+		}
+		for (CompletableFuture<Map<String, Object>> read : reads) {
+			try {
+				objects.putAll(read.join());
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = (Exception) unwrap(e);
+				}
+			}
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		if (failure instanceof ClassNotFoundException) {
+			throw (ClassNotFoundException) failure;
+		}
+		System.out.println("Loaded " + objects.size() + " objects.");
+		return objects;
+	}
+	
+	/*
+	 * Saves records one at a time as name and returns how many there were.
+	 * Unlike saveObject, only one record is held encoded at a time, so
+	 * collections of any size can be saved. Load them with loadRecords().
+	 * If writing fails part way, nothing is saved and the previous records stay.
+	 */
+	public long saveRecords(Iterable<?> records, String name) throws IOException {
+		return saveRecords(records.iterator(), name);
+	}
+	
+	/*
+	 * Saves the records of a stream as they are produced, see saveRecords(Iterable, String).
+	 */
+	public long saveRecords(Stream<?> records, String name) throws IOException {
+		return saveRecords(records.iterator(), name);
+	}
+	
+	/*
+	 * Opens a writer for saving records as name one at a time, for records
+	 * that are not at hand as a collection. They are saved once it is closed.
+	 * Call abort() on it to drop them instead, i.e. when producing them fails,
+	 * and what was saved as name before stays. If one of its writes fails,
+	 * closing it drops them too.
+	 */
+	public RecordWriter openRecordWriter(String name) throws IOException {
+		recover();
+		awaitPending(name);
+		checkpointIfLogged(name);
+		ObjectCache cache = this.cache;
+		if (cache != null) {
+			cache.invalidate(name);
+		}
+		return new RecordWriter(getArchive().openOutput(name), codec, metrics);
+	}
+	
+	/*
+	 * Returns the records saved as name as a lazily read stream, records of another
+	 * type than type fail with a ClassCastException. Close the stream when done,
+	 * i.e. with try-with-resources, to close the file.
+	 */
+	public <T> Stream<T> loadRecords(String name, Class<T> type) throws IOException {
+		return openRecordReader(name, type).stream();
+	}
+	
+	/*
+	 * Opens a reader returning the records saved as name one at a time.
+	 */
+	public <T> RecordReader<T> openRecordReader(String name, Class<T> type) throws IOException {
+		recover();
+		awaitPending(name);
+		StorageMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : metrics.start(Op.LOAD);
+		try {
+			InputStream in = getArchive().openInput(name);
+			if (in == null) {
+				throw new FileNotFoundException("No records saved as " + name + " in " + getFileLocation());
+			}
+			return new RecordReader<T>(in, codec, type, metrics);
+		} catch (FileNotFoundException e) {
+			if (metrics != null) {
+				metrics.missed();
+			}
+			throw e;
+		} catch (IOException e) {
+			if (metrics != null) {
+				metrics.failed(Op.LOAD);
+			}
+			throw e;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.LOAD, start);
+			}
+		}
+	}
+	
+	/*
+	 * Starts a transaction, whose saves are staged until it is committed.
+	 */
+	public ScribeTransaction beginTransaction() {
+		return new ScribeTransaction(this);
+	}
+	
+	/*
+	 * Flushes the archive so every committed transaction is in its files, then
+	 * empties the write-ahead log. Commits do this on their own when the log grows large.
+	 */
+	public void checkpoint() throws IOException {
+		recover();
+		logLock.writeLock().lock();
+		try {
+			getArchive().flush();
+			getLog().truncate();
+			logged.clear();
+		} finally {
+			logLock.writeLock().unlock();
+		}
+	}
+	
+	/*
+	 * Returns the codec objects are saved with.
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+	
+	/*
+	 * Sets the codec objects are saved with, i.e. a BinaryCodec for smaller,
+	 * faster saves. Objects saved with java serialization still load with it.
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+	
+	/*
+	 * Returns the archive objects are saved to, by default one file per object
+	 * in the save folder, inside a DeltaObjectArchive once delta saves were set.
+	 */
+	public synchronized ObjectArchive getArchive() {
+		ObjectArchive current = archive;
+		if (current == null) {
+			if (defaultArchive == null) {
+				defaultArchive = new FileObjectArchive(getFileLocation());
+			}
+			current = defaultArchive;
+		}
+		if (!deltaWrapped || current instanceof DeltaObjectArchive) {
+			return current;
+		}
+		if (deltaArchive == null || deltaArchive.getTarget() != current) {
+			deltaArchive = new DeltaObjectArchive(current);
+			deltaArchive.setMaxChain(deltaSaves ? 8 : 0);
+		}
+		return deltaArchive;
+	}
+	
+	/*
+	 * Sets the archive objects are saved to and loaded from, i.e. a LogObjectArchive
+	 * to append every save to a single log. null goes back to one file per object.
+	 * Objects already saved are not moved between archives.
+	 */
+	public void setArchive(ObjectArchive archive) {
+		closeLog();
+		synchronized (this) {
+			this.archive = archive;
+		}
+		clearCache();
+	}
+	
+	/*
+	 * Saves objects saved again with few changes as patches of the changed blocks
+	 * instead of in full, by wrapping the archive in a DeltaObjectArchive. This
+	 * follows later changes of the archive or save folder.
+	 * false makes every save a full one again, objects saved as patches still load.
+	 */
+	public void setDeltaSaves(boolean enabled) {
+		boolean wrap;
+		synchronized (this) {
+			wrap = enabled && !deltaWrapped;
+		}
+		if (wrap) {
+			//the log is checkpointed into the archive as it was before it is wrapped
+			closeLog();
+		}
+		synchronized (this) {
+			deltaSaves = enabled;
+			deltaWrapped |= enabled;
+			ObjectArchive current = getArchive();
+			if (current instanceof DeltaObjectArchive) {
+				((DeltaObjectArchive) current).setMaxChain(enabled ? 8 : 0);
+			}
+		}
+		if (wrap) {
+			clearCache();
+		}
+	}
+	
+	/*
+	 * Returns whether saves may be written as patches, see setDeltaSaves.
+	 */
+	public boolean isDeltaSaves() {
+		ObjectArchive current = getArchive();
+		return current instanceof DeltaObjectArchive && ((DeltaObjectArchive) current).getMaxChain() > 0;
+	}
+	
+	/*
+	 * Returns the cache loads are served from, or null.
+	 */
+	public ObjectCache getCache() {
+		return cache;
+	}
+	
+	/*
+	 * Keeps loaded objects in cache so loading them again is a lookup, or stops
+	 * caching if cache is null. Saving an object drops it from the cache.
+	 * Loads served from the cache are not recorded in the metrics, see the
+	 * cache's own hit ratio.
+	 */
+	public void setCache(ObjectCache cache) {
+		this.cache = cache;
+	}
+	
+	/*
+	 * Returns the metrics saves and loads are recorded in, or null.
+	 */
+	public StorageMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * Records saves, loads and bytes moved in metrics, or stops recording if
+	 * metrics is null. The same metrics may be given to several scribes and maps.
+	 */
+	public void setMetrics(StorageMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/*
+	 * Returns the executor async saves, loads and batches run on. Unless set, this
+	 * is a pool of IO_THREADS daemon threads, which end when idle for 30 seconds.
+	 */
+	public synchronized Executor getExecutor() {
+		if (executor == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable task) {
+							Thread thread = new Thread(task, "Scribe I/O");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+	
+	/*
+	 * Sets the executor async saves, loads and batches run on, i.e. one shared by
+	 * several scribes. It should not run tasks on the calling thread.
+	 * null goes back to the default pool.
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		this.executor = executor;
 	}
 	
 	/*
@@ -92,12 +609,424 @@ public class Scribe {
 	 * Sets the name of the folder that objects will be saved to.
 	 */
 	public void setSaveFolderInDirectory(String name) {
-		saveFolder = name;
-		inDirectory = true;
+		closeLog();
+		synchronized (this) {
+			saveFolder = name;
+			inDirectory = true;
+			defaultArchive = null;
+		}
+		clearCache();
 	}
 	
 	public void setSaveFolder(String name) {
-		saveFolder = name;
-		inDirectory = false;
+		closeLog();
+		synchronized (this) {
+			saveFolder = name;
+			inDirectory = false;
+			defaultArchive = null;
+		}
+		clearCache();
+	}
+	
+	/*
+	 * Writes encoded bytes under name, ending the save started at start.
+	 */
+	private void write(String name, byte[] data, StorageMetrics metrics, long start) throws IOException {
+		try {
+			recover();
+			checkpointIfLogged(name);
+			getArchive().write(name, data);
+			if (metrics != null) {
+				metrics.written(data.length);
+			}
+		} catch (IOException e) {
+			if (metrics != null) {
+				metrics.failed(Op.SAVE);
+			}
+			throw e;
+		} finally {
+			ObjectCache cache = this.cache;
+			if (cache != null) {
+				cache.invalidate(name);
+			}
+			if (metrics != null) {
+				metrics.end(Op.SAVE, start);
+			}
+		}
+		System.out.println("Object " + name + " saved.");
+	}
+	
+	/*
+	 * Returns the cached object for name, or reads and decodes it, caching the result.
+	 */
+	private Object read(String name) throws ClassNotFoundException, IOException {
+		recover();
+		ObjectCache cache = this.cache;
+		long version = 0;
+		if (cache != null) {
+			Object cached = cache.get(name);
+			if (cached != null) {
+				System.out.println("Object " + name + " loaded.");
+				return cached;
+			}
+			version = cache.version();
+		}
+		StorageMetrics metrics = this.metrics;
+		long start = metrics == null ? 0 : metrics.start(Op.LOAD);
+		Object object;
+		try {
+			byte[] data = getArchive().read(name);
+			if (data == null) {
+				throw new FileNotFoundException("No object saved as " + name + " in " + getFileLocation());
+			}
+			if (metrics != null) {
+				metrics.read(data.length);
+			}
+			object = codec.decode(data);
+			if (cache != null) {
+				cache.put(name, object, data.length, version);
+			}
+		} catch (FileNotFoundException e) {
+			if (metrics != null) {
+				metrics.missed();
+			}
+			throw e;
+		} catch (IOException | ClassNotFoundException e) {
+			if (metrics != null) {
+				metrics.failed(Op.LOAD);
+			}
+			throw e;
+		} finally {
+			if (metrics != null) {
+				metrics.end(Op.LOAD, start);
+			}
+		}
+		System.out.println("Object " + name + " loaded.");
+		return object;
+	}
+	
+	private long saveRecords(Iterator<?> records, String name) throws IOException {
+		RecordWriter writer = openRecordWriter(name);
+		try {
+			while (records.hasNext()) {
+				writer.write(records.next());
+			}
+		} catch (IOException | RuntimeException e) {
+			try {
+				writer.abort();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+		writer.close();
+		System.out.println(writer.getCount() + " records saved as " + name + ".");
+		return writer.getCount();
+	}
+	
+	/*
+	 * Commits a transaction: one log record, forced together with those of
+	 * concurrent commits, then the objects are written to the archive.
+	 */
+	void commit(String[] names, byte[][] data) throws IOException {
+		recover();
+		for (String name : names) {
+			awaitPending(name);
+		}
+		int count = names.length;
+		StorageMetrics metrics = this.metrics;
+		long[] starts = new long[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = metrics == null ? 0 : metrics.start(Op.SAVE);
+		}
+		WriteAheadLog log = getLog();
+		ObjectArchive archive = getArchive();
+		logLock.readLock().lock();
+		try {
+			try {
+				log.sync(log.append(names, data, count));
+				for (String name : names) {
+					logged.add(name);
+				}
+			} catch (IOException e) {
+				if (metrics != null) {
+					for (int i = 0; i < count; i++) {
+						metrics.failed(Op.SAVE);
+						metrics.end(Op.SAVE, starts[i]);
+					}
+				}
+				throw e;
+			}
+			writeBatch(archive, names, data, starts, count, metrics);
+		} finally {
+			logLock.readLock().unlock();
+		}
+		//left to a later commit if others are still using the log
+		if (log.size() > CHECKPOINT_BYTES && logLock.writeLock().tryLock()) {
+			try {
+				archive.flush();
+				log.truncate();
+				logged.clear();
+			} finally {
+				logLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Empties the log before name is saved outside a transaction, if a transaction
+	 * logged name since the log was last emptied. Replay would otherwise put that
+	 * older object back over this save after a crash.
+	 */
+	private void checkpointIfLogged(String name) throws IOException {
+		if (logged.contains(name)) {
+			checkpoint();
+		}
+	}
+	
+	private synchronized WriteAheadLog getLog() {
+		if (log == null) {
+			log = new WriteAheadLog(new File(getFileLocation(), LOG_NAME));
+		}
+		return log;
+	}
+	
+	/*
+	 * Replays a write-ahead log left by a run that crashed, once, before the
+	 * first save or load.
+	 */
+	private void recover() throws IOException {
+		if (recovered) {
+			return;
+		}
+		logLock.writeLock().lock();
+		try {
+			if (!recovered) {
+				int replayed = getLog().replay(getArchive());
+				if (replayed > 0) {
+					System.out.println("Replayed " + replayed + " transactions.");
+				}
+				recovered = true;
+			}
+		} finally {
+			logLock.writeLock().unlock();
+		}
+	}
+	
+	/*
+	 * Checkpoints and closes the log before the archive or save folder changes.
+	 */
+	private void closeLog() {
+		logLock.writeLock().lock();
+		try {
+			WriteAheadLog log;
+			synchronized (this) {
+				log = this.log;
+				this.log = null;
+			}
+			if (log != null) {
+				try {
+					getArchive().flush();
+					log.truncate();
+				} finally {
+					log.close();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			logged.clear();
+			recovered = false;
+			logLock.writeLock().unlock();
+		}
+	}
+	
+	private void clearCache() {
+		ObjectCache cache = this.cache;
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+	
+	/*
+	 * Hands the first count objects to the archive as one batch, ending their saves.
+	 */
+	private void writeBatch(ObjectArchive archive, String[] names, byte[][] data, long[] starts, int count,
+			StorageMetrics metrics) throws IOException {
+		if (count == 0) {
+			return;
+		}
+		try {
+			archive.writeAll(names, data, count);
+			if (metrics != null) {
+				for (int i = 0; i < count; i++) {
+					metrics.written(data[i].length);
+				}
+			}
+		} catch (IOException e) {
+			if (metrics != null) {
+				for (int i = 0; i < count; i++) {
+					metrics.failed(Op.SAVE);
+				}
+			}
+			throw e;
+		} finally {
+			ObjectCache cache = this.cache;
+			if (cache != null) {
+				for (int i = 0; i < count; i++) {
+					cache.invalidate(names[i]);
+				}
+			}
+			if (metrics != null) {
+				for (int i = 0; i < count; i++) {
+					metrics.end(Op.SAVE, starts[i]);
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Reads and decodes a batch of names, leaving out those nothing was saved as.
+	 */
+	private Map<String, Object> readBatch(ObjectArchive archive, String[] names, StorageMetrics metrics)
+			throws IOException, ClassNotFoundException {
+		int count = names.length;
+		Map<String, Object> objects = new HashMap<String, Object>();
+		if (count == 0) {
+			return objects;
+		}
+		ObjectCache cache = this.cache;
+		long version = cache == null ? 0 : cache.version();
+		long[] starts = new long[count];
+		for (int i = 0; i < count; i++) {
+			starts[i] = metrics == null ? 0 : metrics.start(Op.LOAD);
+		}
+		int i = 0;
+		try {
+			byte[][] data = archive.readAll(names, count);
+			for (; i < count; i++) {
+				if (data[i] == null) {
+					if (metrics != null) {
+						metrics.missed();
+					}
+					continue;
+				}
+				if (metrics != null) {
+					metrics.read(data[i].length);
+				}
+				Object object = codec.decode(data[i]);
+				if (cache != null) {
+					cache.put(names[i], object, data[i].length, version);
+				}
+				objects.put(names[i], object);
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			//the rest of the batch is not loaded either
+			if (metrics != null) {
+				for (int j = i; j < count; j++) {
+					metrics.failed(Op.LOAD);
+				}
+			}
+			throw e;
+		} finally {
+			if (metrics != null) {
+				for (int j = 0; j < count; j++) {
+					metrics.end(Op.LOAD, starts[j]);
+				}
+			}
+		}
+		return objects;
+	}
+	
+	/*
+	 * Runs task on the executor once every async call for name made before it is done.
+	 */
+	private <T> CompletableFuture<T> after(final String name, final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Runnable run = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					T value = task.call();
+					pending.remove(name, result);
+					result.complete(value);
+				} catch (Throwable e) {
+					pending.remove(name, result);
+					result.completeExceptionally(e);
+				}
+			}
+		};
+		CompletableFuture<?> previous = pending.put(name, result);
+		if (previous == null) {
+			execute(run, name, result);
+		} else {
+			previous.whenComplete(new BiConsumer<Object, Throwable>() {
+				@Override
+				public void accept(Object value, Throwable e) {
+					execute(run, name, result);
+				}
+			});
+		}
+		return result;
+	}
+	
+	private <T> CompletableFuture<T> submit(final Callable<T> task) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					result.complete(task.call());
+				} catch (Throwable e) {
+					result.completeExceptionally(e);
+				}
+			}
+		}, null, result);
+		return result;
+	}
+	
+	private void execute(Runnable run, String name, CompletableFuture<?> result) {
+		try {
+			getExecutor().execute(run);
+		} catch (RejectedExecutionException e) {
+			if (name != null) {
+				pending.remove(name, result);
+			}
+			result.completeExceptionally(e);
+		}
+	}
+	
+	/*
+	 * Waits for the async calls made for name so far, ignoring their failures,
+	 * which were already reported through their futures.
+	 */
+	private void awaitPending(String name) {
+		CompletableFuture<?> last = pending.get(name);
+		if (last == null) {
+			return;
+		}
+		try {
+			last.join();
+		} catch (CompletionException | CancellationException e) {
+			//already reported through its future
+		}
+	}
+	
+	/*
+	 * Returns the checked exception a batch failed with, rethrowing anything unchecked.
+	 */
+	private static Throwable unwrap(CompletionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if (cause instanceof Error) {
+			throw (Error) cause;
+		}
+		return cause;
+	}
+	
+	private static int batchSize(int count) {
+		return Math.max(MIN_BATCH, (count + IO_THREADS - 1) / IO_THREADS);
 	}
 }
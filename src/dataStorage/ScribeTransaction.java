@@ -0,0 +1,75 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Saves staged together and committed as one, made with Scribe.beginTransaction().
+ * commit() writes every staged object to the Scribe's write-ahead log as one
+ * record and forces it to disk once, fsyncs being shared with transactions
+ * committing at the same time, then saves the objects to the archive.
+ * After a crash either all of a committed transaction's objects are saved or
+ * none are, the log is replayed the next time the Scribe is used.
+ *
+ * A transaction is meant for one thread, commit() may be called from several
+ * transactions at once.
+ */
+public class ScribeTransaction {
+	private final Scribe scribe;
+	private final Map<String, byte[]> staged;
+	private boolean done;
+
+	ScribeTransaction(Scribe scribe) {
+		this.scribe = scribe;
+		staged = new LinkedHashMap<String, byte[]>();
+	}
+
+	/*
+	 * Stages object to be saved as name on commit. The object is encoded now,
+	 * so later changes to it are not saved. Staging a name again replaces it.
+	 */
+	public void saveObject(Object object, String name) throws IOException {
+		checkOpen();
+		staged.put(name, scribe.getCodec().encode(object));
+	}
+
+	/*
+	 * Returns the number of objects staged.
+	 */
+	public int size() {
+		return staged.size();
+	}
+
+	/*
+	 * Saves every staged object durably and as a whole. If this throws, the
+	 * transaction may still have reached the log, and is then applied on replay.
+	 * The transaction cannot be used afterwards either way.
+	 */
+	public void commit() throws IOException {
+		checkOpen();
+		done = true;
+		if (staged.isEmpty()) {
+			return;
+		}
+		String[] names = staged.keySet().toArray(new String[0]);
+		byte[][] data = staged.values().toArray(new byte[0][]);
+		staged.clear();
+		scribe.commit(names, data);
+	}
+
+	/*
+	 * Drops every staged object without saving.
+	 */
+	public void rollback() {
+		checkOpen();
+		done = true;
+		staged.clear();
+	}
+
+	private void checkOpen() {
+		if (done) {
+			throw new IllegalStateException("Transaction was already committed or rolled back");
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package dataStorage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/*
+ * Codec using java serialization (ObjectOutputStream), the format saves have always used.
+ * Works for any Serializable value, but is slow and large.
+ */
+public class SerialCodec implements Codec {
+
+	@Override
+	public byte[] encode(Object value) throws IOException {
+		if (value != null && !(value instanceof Serializable)) {
+			throw new NotSerializableException(value.getClass().getName());
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream stream = new ObjectOutputStream(bytes);
+		stream.writeObject(value);
+		stream.close();
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return stream.readObject();
+		} finally {
+			stream.close();
+		}
+	}
+}
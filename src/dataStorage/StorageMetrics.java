@@ -0,0 +1,222 @@
+package dataStorage;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms for a PointMap or Scribe, set with their
+ * setMetrics(). One instance may be shared by several maps and scribes.
+ * Read with snapshot(), or through JMX after register().
+ *
+ * Counters are LongAdders, so threads do not contend on them. Disk operations
+ * (load, save, unload) are all timed. get, put and remove are counted every
+ * time but only one call in SAMPLE_EVERY is timed, picked at random per thread,
+ * so the hot path pays for an increment and not for two clock reads.
+ */
+public class StorageMetrics {
+
+	/*
+	 * Operations that are counted and timed. The first three are sampled.
+	 */
+	public enum Op {
+		GET, PUT, REMOVE, LOAD, SAVE, UNLOAD
+	}
+
+	/*
+	 * get, put and remove are timed once every SAMPLE_EVERY calls on average, a power of two.
+	 */
+	static final int SAMPLE_EVERY = 64;
+
+	/*
+	 * returned by start() for calls that are not timed.
+	 */
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	/*
+	 * histogram bucket i holds durations below 2^i nanoseconds.
+	 */
+	static final int BUCKETS = 64;
+
+	private final LongAdder[] counts;
+	private final LongAdder[] failures;
+	private final LongAdder[] timed;
+	private final LongAdder[] totalNanos;
+	private final AtomicLongArray[] histograms;
+	private final AtomicLongArray maxNanos;
+	private final LongAdder bytesRead;
+	private final LongAdder bytesWritten;
+	private final LongAdder loadMisses;
+
+	private ObjectName registeredAs;
+
+	/*
+	 * Initializes metrics with every count at zero.
+	 */
+	public StorageMetrics() {
+		int ops = Op.values().length;
+		counts = adders(ops);
+		failures = adders(ops);
+		timed = adders(ops);
+		totalNanos = adders(ops);
+		histograms = new AtomicLongArray[ops];
+		for (int i = 0; i < ops; i++) {
+			histograms[i] = new AtomicLongArray(BUCKETS);
+		}
+		maxNanos = new AtomicLongArray(ops);
+		bytesRead = new LongAdder();
+		bytesWritten = new LongAdder();
+		loadMisses = new LongAdder();
+	}
+
+	/*
+	 * Counts a call to op and returns its start time if it is timed,
+	 * otherwise NOT_TIMED. Pass the result to end().
+	 */
+	long start(Op op) {
+		int i = op.ordinal();
+		counts[i].increment();
+		if (i <= Op.REMOVE.ordinal() && (ThreadLocalRandom.current().nextInt() & (SAMPLE_EVERY - 1)) != 0) {
+			return NOT_TIMED;
+		}
+		return System.nanoTime();
+	}
+
+	/*
+	 * Records the duration of a call started with start().
+	 */
+	void end(Op op, long start) {
+		if (start != NOT_TIMED) {
+			record(op.ordinal(), Math.max(System.nanoTime() - start, 0));
+		}
+	}
+
+	/*
+	 * Counts a failed call to op, i.e. an I/O error.
+	 */
+	void failed(Op op) {
+		failures[op.ordinal()].increment();
+	}
+
+	/*
+	 * Counts a load that found nothing saved.
+	 */
+	void missed() {
+		loadMisses.increment();
+	}
+
+	void read(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	private void record(int op, long nanos) {
+		timed[op].increment();
+		totalNanos[op].add(nanos);
+		histograms[op].incrementAndGet(bucket(nanos));
+		long max;
+		while (nanos > (max = maxNanos.get(op)) && !maxNanos.compareAndSet(op, max, nanos)) {
+		}
+	}
+
+	/*
+	 * Returns the counts as they are now. Counts taken while other threads
+	 * record are each exact, but not necessarily from the same instant.
+	 */
+	public MetricsSnapshot snapshot() {
+		int ops = counts.length;
+		long[] count = new long[ops];
+		long[] failed = new long[ops];
+		long[] sampled = new long[ops];
+		long[] total = new long[ops];
+		long[] max = new long[ops];
+		long[][] buckets = new long[ops][BUCKETS];
+		for (int i = 0; i < ops; i++) {
+			count[i] = counts[i].sum();
+			failed[i] = failures[i].sum();
+			sampled[i] = timed[i].sum();
+			total[i] = totalNanos[i].sum();
+			max[i] = maxNanos.get(i);
+			for (int b = 0; b < BUCKETS; b++) {
+				buckets[i][b] = histograms[i].get(b);
+			}
+		}
+		return new MetricsSnapshot(count, failed, sampled, total, max, buckets, bytesRead.sum(), bytesWritten.sum(),
+				loadMisses.sum());
+	}
+
+	/*
+	 * Sets every count back to zero.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i].reset();
+			failures[i].reset();
+			timed[i].reset();
+			totalNanos[i].reset();
+			maxNanos.set(i, 0);
+			for (int b = 0; b < BUCKETS; b++) {
+				histograms[i].set(b, 0);
+			}
+		}
+		bytesRead.reset();
+		bytesWritten.reset();
+		loadMisses.reset();
+	}
+
+	/*
+	 * Registers the metrics with the platform MBean server as
+	 * dataStorage:type=StorageMetrics,name=<name>, so they show up in jconsole
+	 * or VisualVM. Returns false if that failed, i.e. the name is taken.
+	 */
+	public synchronized boolean register(String name) {
+		unregister();
+		try {
+			ObjectName objectName = new ObjectName("dataStorage:type=StorageMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), objectName);
+			registeredAs = objectName;
+			return true;
+		} catch (JMException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/*
+	 * Removes the metrics from the MBean server, if registered.
+	 */
+	public synchronized void unregister() {
+		if (registeredAs == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(registeredAs)) {
+				server.unregisterMBean(registeredAs);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		registeredAs = null;
+	}
+
+	static int bucket(long nanos) {
+		return Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+}
@@ -0,0 +1,317 @@
+package dataStorage;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+ * Thread safe PointStore using lock striping by region.
+ * The world is cut into square regions, and every region belongs to one of a
+ * fixed number of stripes. Each stripe keeps its regions as LongPointStores,
+ * guarded by the stripe's read/write lock, so threads working on different
+ * regions rarely contend, and readers of the same stripe never block each other.
+ * forEachInRect only locks and walks the regions overlapping the rectangle.
+ *
+ * size, forEach and forEachInRect lock one stripe at a time, so they are
+ * weakly consistent while other threads write.
+ */
+public class StripedPointStore<V> implements PointStore<V> {
+
+	private static final int DEFAULT_REGION_SIZE = 16;
+
+	/*
+	 * log2 of the region width.
+	 */
+	private final int regionBits;
+
+	private final Stripe<V>[] stripes;
+
+	private final int stripeMask;
+
+	/*
+	 * A part of the map, with the lock guarding it.
+	 */
+	private static final class Stripe<V> {
+		final LongPointStore<LongPointStore<V>> regions = new LongPointStore<LongPointStore<V>>();
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		int size;
+
+		V get(int x, int y, int regionBits) {
+			LongPointStore<V> region = regions.get(x >> regionBits, y >> regionBits);
+			return region == null ? null : region.get(x, y);
+		}
+
+		V put(int x, int y, V value, int regionBits) {
+			if (value == null) {
+				return remove(x, y, regionBits);
+			}
+			LongPointStore<V> region = regions.get(x >> regionBits, y >> regionBits);
+			if (region == null) {
+				region = new LongPointStore<V>();
+				regions.put(x >> regionBits, y >> regionBits, region);
+			}
+			V old = region.put(x, y, value);
+			if (old == null) {
+				size++;
+			}
+			return old;
+		}
+
+		V remove(int x, int y, int regionBits) {
+			LongPointStore<V> region = regions.get(x >> regionBits, y >> regionBits);
+			if (region == null) {
+				return null;
+			}
+			V old = region.remove(x, y);
+			if (old != null) {
+				size--;
+				if (region.size() == 0) {
+					regions.remove(x >> regionBits, y >> regionBits);
+				}
+			}
+			return old;
+		}
+	}
+
+	/*
+	 * Initializes with 16x16 regions and four stripes per available processor.
+	 */
+	public StripedPointStore() {
+		this(DEFAULT_REGION_SIZE, Runtime.getRuntime().availableProcessors() * 4);
+	}
+
+	/*
+	 * Initializes with regionSize x regionSize regions spread over stripeCount stripes.
+	 * regionSize must be a power of two, stripeCount is rounded up to one.
+	 */
+	public StripedPointStore(int regionSize, int stripeCount) {
+		if (regionSize < 1 || Integer.bitCount(regionSize) != 1) {
+			throw new IllegalArgumentException("Region size must be a power of two: " + regionSize);
+		}
+		if (stripeCount < 1) {
+			throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+		}
+		regionBits = Integer.numberOfTrailingZeros(regionSize);
+		int count = Integer.highestOneBit(stripeCount - 1) << 1;
+		count = Math.max(count, 1);
+		stripes = newStripes(count);
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe<V>();
+		}
+		stripeMask = count - 1;
+	}
+
+	@Override
+	public V get(int x, int y) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.readLock().lock();
+		try {
+			return stripe.get(x, y, regionBits);
+		} finally {
+			stripe.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public V put(int x, int y, V value) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.writeLock().lock();
+		try {
+			return stripe.put(x, y, value, regionBits);
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public V remove(int x, int y) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.writeLock().lock();
+		try {
+			return stripe.remove(x, y, regionBits);
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Stores value only if x, y is empty. Returns the value already there, or null if value was stored.
+	 */
+	public V putIfAbsent(int x, int y, V value) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.writeLock().lock();
+		try {
+			V old = stripe.get(x, y, regionBits);
+			if (old == null) {
+				stripe.put(x, y, value, regionBits);
+			}
+			return old;
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Atomically replaces the value at x, y with remapping(old value), old value may be null.
+	 * Returning null removes the entry. Returns the new value.
+	 * remapping runs under the stripe's lock, so it must be short and must not touch this store.
+	 */
+	public V compute(int x, int y, Function<? super V, ? extends V> remapping) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.writeLock().lock();
+		try {
+			V value = remapping.apply(stripe.get(x, y, regionBits));
+			stripe.put(x, y, value, regionBits);
+			return value;
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+	}
+
+	/*
+	 * Atomically stores value if x, y is empty, otherwise replaces the old value with
+	 * remapping(old value, value). Returning null removes the entry. Returns the new value.
+	 */
+	public V merge(int x, int y, V value, BiFunction<? super V, ? super V, ? extends V> remapping) {
+		Stripe<V> stripe = stripeFor(x, y);
+		stripe.lock.writeLock().lock();
+		try {
+			V old = stripe.get(x, y, regionBits);
+			V merged = old == null ? value : remapping.apply(old, value);
+			stripe.put(x, y, merged, regionBits);
+			return merged;
+		} finally {
+			stripe.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Stripe<V> stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				size += stripe.size;
+			} finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe<V> stripe : stripes) {
+			stripe.lock.writeLock().lock();
+			try {
+				stripe.regions.clear();
+				stripe.size = 0;
+			} finally {
+				stripe.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/*
+	 * Visits every stripe in turn under its read lock, the visitor must not
+	 * write to this store.
+	 */
+	@Override
+	public void forEach(final PointVisitor<? super V> visitor) {
+		for (Stripe<V> stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				stripe.regions.forEach(new PointVisitor<LongPointStore<V>>() {
+					@Override
+					public void visit(int rx, int ry, LongPointStore<V> region) {
+						region.forEach(visitor);
+					}
+				});
+			} finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/*
+	 * Visits the regions overlapping the rectangle, each under its stripe's
+	 * read lock, the visitor must not write to this store. A rectangle covering
+	 * more regions than there are in the store walks the regions of every stripe instead.
+	 */
+	@Override
+	public void forEachInRect(final int x0, final int y0, final int x1, final int y1,
+			final PointVisitor<? super V> visitor) {
+		if (x0 > x1 || y0 > y1) {
+			return;
+		}
+		final int rx0 = x0 >> regionBits;
+		final int ry0 = y0 >> regionBits;
+		final int rx1 = x1 >> regionBits;
+		final int ry1 = y1 >> regionBits;
+		long width = (long) rx1 - rx0 + 1;
+		long height = (long) ry1 - ry0 + 1;
+		if (width * height <= regionCount()) {
+			for (long ry = ry0; ry <= ry1; ry++) {
+				for (long rx = rx0; rx <= rx1; rx++) {
+					Stripe<V> stripe = stripeForRegion((int) rx, (int) ry);
+					stripe.lock.readLock().lock();
+					try {
+						LongPointStore<V> region = stripe.regions.get((int) rx, (int) ry);
+						if (region != null) {
+							region.forEachInRect(x0, y0, x1, y1, visitor);
+						}
+					} finally {
+						stripe.lock.readLock().unlock();
+					}
+				}
+			}
+			return;
+		}
+		for (Stripe<V> stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				stripe.regions.forEach(new PointVisitor<LongPointStore<V>>() {
+					@Override
+					public void visit(int rx, int ry, LongPointStore<V> region) {
+						if (rx >= rx0 && rx <= rx1 && ry >= ry0 && ry <= ry1) {
+							region.forEachInRect(x0, y0, x1, y1, visitor);
+						}
+					}
+				});
+			} finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+	}
+
+	/*
+	 * Returns the number of regions holding entries, weakly consistent like size().
+	 */
+	private int regionCount() {
+		int count = 0;
+		for (Stripe<V> stripe : stripes) {
+			stripe.lock.readLock().lock();
+			try {
+				count += stripe.regions.size();
+			} finally {
+				stripe.lock.readLock().unlock();
+			}
+		}
+		return count;
+	}
+
+	private Stripe<V> stripeFor(int x, int y) {
+		return stripeForRegion(x >> regionBits, y >> regionBits);
+	}
+
+	private Stripe<V> stripeForRegion(int rx, int ry) {
+		int h = rx * 0x9E3779B1 + ry;
+		h ^= h >>> 16;
+		return stripes[h & stripeMask];
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Stripe<V>[] newStripes(int count) {
+		return (Stripe<V>[]) new Stripe<?>[count];
+	}
+}
@@ -0,0 +1,258 @@
+package dataStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead log behind Scribe transactions. Each committed transaction is
+ * appended as one record, then made durable by sync(). Committers that append
+ * while another is forcing the file wait for the next force, which covers all
+ * of them at once, so concurrent commits share fsyncs (group commit).
+ *
+ * Records are applied to the archive right after they are durable, so the
+ * log only matters after a crash, when replay() writes what it holds to the
+ * archive again. truncate() empties it once the archive itself was flushed.
+ *
+ * The file starts with an 8 byte preamble, magic and version. A record is a
+ * length and CRC32 of the body, then the body: the number of objects and per
+ * object the length of its name and data, the UTF-8 name and the data.
+ * A torn record at the end from a crash during append fails its CRC and is ignored.
+ */
+class WriteAheadLog {
+	static final int MAGIC = 0x5343574C;
+	static final int VERSION = 1;
+	static final int PREAMBLE = 8;
+	static final int RECORD_HEADER = 8;
+
+	private final File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	//where the next record goes
+	private long end;
+
+	//everything before this was forced to disk
+	private long durable;
+
+	//set while a committer is forcing the file outside the lock
+	private boolean syncing;
+
+	WriteAheadLog(File file) {
+		this.file = file;
+	}
+
+	/*
+	 * Writes every complete record in the log to archive and flushes it, then
+	 * empties the log. Returns the number of records replayed, 0 if there is no log.
+	 */
+	synchronized int replay(ObjectArchive archive) throws IOException {
+		if (channel == null && !file.isFile()) {
+			return 0;
+		}
+		open();
+		int records = 0;
+		long position = PREAMBLE;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+		while (position + RECORD_HEADER <= size) {
+			header.clear();
+			readFully(header, position);
+			int length = header.getInt(0);
+			int crc = header.getInt(4);
+			if (length < 4 || position + RECORD_HEADER + length > size) {
+				break;
+			}
+			ByteBuffer body = ByteBuffer.allocate(length);
+			readFully(body, position + RECORD_HEADER);
+			CRC32 checksum = new CRC32();
+			checksum.update(body.array(), 0, length);
+			if ((int) checksum.getValue() != crc) {
+				break;
+			}
+			body.flip();
+			int count = body.getInt();
+			String[] names = new String[count];
+			byte[][] data = new byte[count][];
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[body.getInt()];
+				data[i] = new byte[body.getInt()];
+				body.get(name).get(data[i]);
+				names[i] = new String(name, StandardCharsets.UTF_8);
+			}
+			archive.writeAll(names, data, count);
+			records++;
+			position += RECORD_HEADER + length;
+		}
+		archive.flush();
+		truncate();
+		return records;
+	}
+
+	/*
+	 * Appends one record holding the first count objects and returns the
+	 * position sync() must reach for it to be durable.
+	 */
+	synchronized long append(String[] names, byte[][] data, int count) throws IOException {
+		open();
+		byte[][] nameBytes = new byte[count][];
+		long length = 4;
+		for (int i = 0; i < count; i++) {
+			nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+			length += 8L + nameBytes[i].length + data[i].length;
+		}
+		if (length > Integer.MAX_VALUE - RECORD_HEADER) {
+			throw new IOException("Transaction is too large for one log record: " + length + " bytes");
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + (int) length);
+		record.position(RECORD_HEADER);
+		record.putInt(count);
+		for (int i = 0; i < count; i++) {
+			record.putInt(nameBytes[i].length).putInt(data[i].length).put(nameBytes[i]).put(data[i]);
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(record.array(), RECORD_HEADER, (int) length);
+		record.putInt(0, (int) length).putInt(4, (int) checksum.getValue());
+		record.flip();
+		long position = end;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		end = position;
+		return end;
+	}
+
+	/*
+	 * Returns once everything before position is on disk. One caller forces the
+	 * file at a time, without the lock, and the force covers every record
+	 * appended before it started. Those who arrive meanwhile wait and share the next one.
+	 */
+	void sync(long position) throws IOException {
+		long target;
+		FileChannel forcing;
+		synchronized (this) {
+			boolean interrupted = false;
+			while (durable < position && syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (durable >= position) {
+				return;
+			}
+			syncing = true;
+			target = end;
+			forcing = channel;
+		}
+		boolean forced = false;
+		try {
+			forcing.force(false);
+			forced = true;
+		} finally {
+			synchronized (this) {
+				if (forced) {
+					durable = Math.max(durable, target);
+				}
+				syncing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Returns the size of the log in bytes.
+	 */
+	synchronized long size() {
+		return end;
+	}
+
+	/*
+	 * Drops every record. Callers make sure all of them reached the archive first.
+	 */
+	synchronized void truncate() throws IOException {
+		awaitSync();
+		if (channel == null) {
+			return;
+		}
+		channel.truncate(PREAMBLE);
+		channel.force(true);
+		end = PREAMBLE;
+		durable = PREAMBLE;
+	}
+
+	synchronized void close() throws IOException {
+		awaitSync();
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} finally {
+			raf.close();
+			channel = null;
+			raf = null;
+		}
+	}
+
+	private void open() throws IOException {
+		if (channel != null) {
+			return;
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE);
+		if (channel.size() < PREAMBLE) {
+			preamble.putInt(MAGIC).putInt(VERSION).flip();
+			channel.truncate(0);
+			channel.write(preamble, 0);
+			channel.force(true);
+		} else {
+			readFully(preamble, 0);
+			if (preamble.getInt(0) != MAGIC || preamble.getInt(4) != VERSION) {
+				close();
+				throw new IOException("Not a Scribe write-ahead log: " + file);
+			}
+		}
+		end = channel.size();
+		durable = end;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of " + file);
+			}
+		}
+	}
+
+	/*
+	 * Waits until no committer is forcing the file. Called with the lock held.
+	 */
+	private void awaitSync() {
+		boolean interrupted = false;
+		while (syncing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package dataStorage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/*
+ * Archive that queues writes in memory and hands them to another archive from
+ * a background thread, so the thread calling write() never waits on the disk.
+ *
+ * The writer takes everything queued since its last pass as one batch and passes
+ * it to the target's writeAll, so many small saves become a few large writes.
+ * A value written twice before the writer gets to it is only written once.
+ * Reads see queued data before it reaches the target.
+ *
+ * If writing a batch fails, it goes back into the queue and the writer pauses,
+ * so nothing is lost, and barrier() and flush() fail until retry() is called.
+ *
+ * The writer thread is a daemon, call flush() or close() before exiting
+ * to be sure everything is on disk.
+ */
+public class WriteBehindArchive implements PointArchive {
+	private final PointArchive target;
+
+	/*
+	 * writes not yet taken by the writer, and the future completed once they are written.
+	 */
+	private LongPointStore<byte[]> pending;
+	private CompletableFuture<Void> pendingDone;
+
+	/*
+	 * batch the writer is working on, null when idle.
+	 */
+	private LongPointStore<byte[]> inFlight;
+	private CompletableFuture<Void> inFlightDone;
+
+	/*
+	 * why the last batch could not be written, null while writing works.
+	 */
+	private Throwable failure;
+
+	private Thread writer;
+
+	/*
+	 * Initializes archive writing behind into target.
+	 */
+	public WriteBehindArchive(PointArchive target) {
+		this.target = target;
+		pending = new LongPointStore<byte[]>();
+		pendingDone = new CompletableFuture<Void>();
+	}
+
+	/*
+	 * Returns the archive the writes end up in.
+	 */
+	public PointArchive getTarget() {
+		return target;
+	}
+
+	@Override
+	public byte[] read(int x, int y) throws IOException {
+		synchronized (this) {
+			byte[] data = pending.get(x, y);
+			if (data == null && inFlight != null) {
+				data = inFlight.get(x, y);
+			}
+			if (data != null) {
+				return data;
+			}
+		}
+		return target.read(x, y);
+	}
+
+	/*
+	 * Queues data for x, y and returns immediately.
+	 */
+	@Override
+	public synchronized void write(int x, int y, byte[] data) {
+		pending.put(x, y, data);
+		startWriter();
+		notifyAll();
+	}
+
+	/*
+	 * Queues the whole batch and returns immediately.
+	 */
+	@Override
+	public synchronized void writeAll(long[] keys, byte[][] data, int count) {
+		for (int i = 0; i < count; i++) {
+			pending.put(LongPointStore.unpackX(keys[i]), LongPointStore.unpackY(keys[i]), data[i]);
+		}
+		startWriter();
+		notifyAll();
+	}
+
+	/*
+	 * Returns a future completed once everything queued so far has been written to
+	 * the target, or completed exceptionally if writing it failed.
+	 */
+	public synchronized CompletableFuture<Void> barrier() {
+		if (failure != null) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(failure);
+			return failed;
+		}
+		if (pending.size() > 0) {
+			return pendingDone;
+		}
+		if (inFlight != null) {
+			return inFlightDone;
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/*
+	 * Returns why the last batch could not be written, or null if writing works.
+	 */
+	public synchronized Throwable getFailure() {
+		return failure;
+	}
+
+	/*
+	 * Clears the failure of the last batch and has the writer try everything
+	 * queued again, i.e. once there is room on the disk again.
+	 */
+	public synchronized void retry() {
+		failure = null;
+		if (pending.size() > 0) {
+			startWriter();
+		}
+		notifyAll();
+	}
+
+	/*
+	 * Waits until everything queued so far is written, then flushes the target.
+	 */
+	@Override
+	public void flush() throws IOException {
+		try {
+			barrier().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while flushing", e);
+		} catch (ExecutionException e) {
+			throw toIOException(e.getCause());
+		}
+		target.flush();
+	}
+
+	/*
+	 * Flushes, stops the writer thread and closes the target.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		synchronized (this) {
+			if (writer != null) {
+				writer.interrupt();
+				writer = null;
+			}
+		}
+		target.close();
+	}
+
+	private void startWriter() {
+		if (writer == null) {
+			writer = new Thread("PointMap writer") {
+				@Override
+				public void run() {
+					writeLoop(this);
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/*
+	 * Repeatedly takes everything pending as one batch and writes it to the target.
+	 * A batch that fails is put back behind anything written since, and the
+	 * writer waits for retry().
+	 */
+	private void writeLoop(Thread self) {
+		while (true) {
+			LongPointStore<byte[]> batch;
+			CompletableFuture<Void> done;
+			synchronized (this) {
+				while (pending.size() == 0 || failure != null) {
+					if (writer != self) {
+						return;
+					}
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						if (writer != self) {
+							return;
+						}
+					}
+				}
+				batch = inFlight = pending;
+				done = inFlightDone = pendingDone;
+				pending = new LongPointStore<byte[]>();
+				pendingDone = new CompletableFuture<Void>();
+			}
+			final long[] keys = new long[batch.size()];
+			final byte[][] data = new byte[batch.size()][];
+			batch.forEach(new PointVisitor<byte[]>() {
+				int i = 0;
+
+				@Override
+				public void visit(int x, int y, byte[] value) {
+					keys[i] = LongPointStore.pack(x, y);
+					data[i++] = value;
+				}
+			});
+			Throwable error = null;
+			try {
+				target.writeAll(keys, data, keys.length);
+			} catch (Throwable e) {
+				e.printStackTrace();
+				error = e;
+			}
+			synchronized (this) {
+				inFlight = null;
+				inFlightDone = null;
+				if (error != null) {
+					failure = error;
+					batch.forEach(new PointVisitor<byte[]>() {
+						@Override
+						public void visit(int x, int y, byte[] value) {
+							if (pending.get(x, y) == null) {
+								pending.put(x, y, value);
+							}
+						}
+					});
+				}
+			}
+			if (error == null) {
+				done.complete(null);
+			} else {
+				done.completeExceptionally(error);
+			}
+		}
+	}
+
+	private static IOException toIOException(Throwable cause) {
+		if (cause instanceof CompletionException && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(cause);
+	}
+}
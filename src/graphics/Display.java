@@ -4,7 +4,24 @@
 package graphics;
 
 import javax.swing.*;
+import java.awt.AWTException;
+import java.awt.BufferCapabilities;
+import java.awt.DisplayMode;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.ImageCapabilities;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferStrategy;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /*  Easy to use Free utility for displaying and changing panels in a JFrame
  *  Contains only one main panel, and overlays other panels on top of main panel.
@@ -15,14 +32,39 @@ import java.util.*;
  *  TODO add functionality for stacking menus.
  *  
  *  MUST USE start() METHOD TO SHOW PANEL
+ *  
+ *  Frames are paced to the refresh rate, the time spent rendering is taken off the wait.
+ *  By default Swing paints the frame when asked to repaint. With active rendering the
+ *  refresh thread paints every frame itself into a BufferStrategy and shows it.
+ *  With dirty tracking only the regions marked with markDirty() are repainted,
+ *  and frames where nothing was marked are skipped.
+ *  Frame, update and paint times are recorded in getFrameMetrics().
+ *  
+ *  A headless display, from createHeadless() or any display made while
+ *  java.awt.headless is true, has no window and renders into an image instead,
+ *  read with getFrameBuffer() or captureFrame(). It renders at the refresh rate
+ *  once started, or whenever render() is called.
+ *  
+ *  Overlays that rarely change can be added with addStaticOverlay(). They are painted
+ *  once into a cached image, and repainted only after invalidateOverlay().
  */
 
 public class Display {
 	/*
-	 * main frame component used throughout display
+	 * main frame component used throughout display, null when headless
 	 */
 	private JFrame frame;
 	
+	/*
+	 * holds the overlay and the menu, the frame's content pane unless headless.
+	 */
+	private JPanel content;
+	
+	/*
+	 * image frames are rendered into when headless, null otherwise.
+	 */
+	private BufferedImage frameBuffer;
+	
 	/*
 	 * panel that is displayed by default, at the bottom layer. 
 	 * used for the main game world and things like that.
@@ -35,6 +77,11 @@ public class Display {
 	 */
 	private Stack<JPanel> overlayPanels;
 	
+	/*
+	 * layer holding each static overlay, static overlays added one after another share one.
+	 */
+	private Map<JPanel, StaticLayer> staticLayers;
+	
 	/*
 	 * contains all stacked panels and displays as one pane
 	 */
@@ -53,7 +100,54 @@ public class Display {
 	/*
 	 * boolean to allow the stopping of refresh
 	 */
-	private boolean refresh;
+	private volatile boolean refresh;
+	
+	/*
+	 * whether frames are painted by the refresh thread into bufferStrategy.
+	 */
+	private volatile boolean activeRendering;
+	
+	/*
+	 * whether frames are timed to the screen's refresh rate.
+	 */
+	private volatile boolean vsync;
+	
+	/*
+	 * whether only marked regions are repainted.
+	 */
+	private volatile boolean dirtyTracking;
+	
+	/*
+	 * union of the regions marked since the last frame, in content pane
+	 * coordinates, null if none. Guarded by dirtyLock.
+	 */
+	private Rectangle dirtyRegion;
+	private final Object dirtyLock = new Object();
+	
+	/*
+	 * timings of every frame.
+	 */
+	private final FrameMetrics metrics = new FrameMetrics();
+	
+	/*
+	 * run by the refresh thread at the start of every frame, or null.
+	 */
+	private volatile Runnable updateTask;
+	
+	/*
+	 * graph of the frame metrics over the overlays, null when hidden.
+	 */
+	private volatile FrameGraph frameGraph;
+	
+	/*
+	 * time active rendering spent laying out the last frame.
+	 */
+	private long layoutNanos;
+	
+	/*
+	 * back buffers for active rendering, made when the frame is first shown.
+	 */
+	private BufferStrategy bufferStrategy;
 	
 	/*
 	 * width and height of panel, does not include border.
@@ -67,16 +161,29 @@ public class Display {
 	private static final double REFRESH_RATE = 60;
 	
 	/*
-	 * The time between each refresh of the frame.
+	 * times per second the frame refreshes, REFRESH_RATE unless set.
 	 */
-	private static final long SLEEP_MILLIS = (long) (1000 / REFRESH_RATE);
+	private volatile double refreshRate = REFRESH_RATE;
 	
 	
+	/*
+	 * Makes a display in a window, or a headless one if java.awt.headless is true.
+	 */
 	public Display(int width, int height, String name, JPanel mainPanel) {
+		this(width, height, name, mainPanel, GraphicsEnvironment.isHeadless());
+	}
+	
+	private Display(int width, int height, String name, JPanel mainPanel, boolean headless) {
 		this.width = width;
 		this.height = height;
 		
-		createFrame(name);
+		createContent();
+		if (headless) {
+			content.setSize(width, height);
+			frameBuffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		} else {
+			createFrame(name);
+		}
 		createOverlay();
 		
 		this.mainPanel = mainPanel;
@@ -85,19 +192,50 @@ public class Display {
 		actMap = overlay.getActionMap();
 		
 		overlayPanels = new Stack<JPanel>();
+		staticLayers = new IdentityHashMap<JPanel, StaticLayer>();
 		inMenuMode = false;
 	}
 	
+	/*
+	 * Makes a display without a window, rendering into an image of the given size.
+	 */
+	public static Display createHeadless(int width, int height, JPanel mainPanel) {
+		return new Display(width, height, null, mainPanel, true);
+	}
+	
+	/*
+	 * Helper method to make the panel holding everything, timing its painting
+	 */
+	private void createContent() {
+		content = new JPanel(null) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			public void paint(Graphics g) {
+				long start = System.nanoTime();
+				super.paint(g);
+				metrics.paint(System.nanoTime() - start);
+			}
+		};
+	}
+	
 	/*
 	 * Helper method to initiate frame
 	 */
 	private void createFrame(String name) {
 		frame = new JFrame(name);
+		frame.setContentPane(content);
 		frame.setBounds(0, 0, width + 16, height + 39);
 		//frame.getContentPane().setSize(1000, 1000);
 		//frame.setUndecorated(true);
 		frame.setLayout(null);
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		frame.addComponentListener(new ComponentAdapter() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				markAllDirty();
+			}
+		});
 	}
 	
 	/*
@@ -109,7 +247,7 @@ public class Display {
 		overlay.setVisible(true);
 		overlay.setLayout(null);
 		overlay.setSize(width, height);
-		frame.getContentPane().add(overlay);
+		content.add(overlay);
 	}
 	
 	/*
@@ -117,25 +255,53 @@ public class Display {
 	 */
 	public void start() {
 		refresh = true;
+		markAllDirty();
 		createRefresh();
-		frame.setVisible(true);
+		if (frame != null) {
+			frame.setVisible(true);
+		}
 	}
 	
 	/*
 	 * Creates a thread that repeats until the window is closed.
-	 * Repaints and revalidates frame, then sleeps for a given time.
+	 * Renders a frame, then waits until the next one is due. Frames are due at a
+	 * fixed period from each other, so rendering time does not slow the rate down.
+	 * A frame that is late starts the count again instead of rushing to catch up.
 	 */
 	private void createRefresh() {
-		Thread t = new Thread() {
+		Thread t = new Thread("Display refresh") {
 			@Override
 			public void run() {
+				long next = System.nanoTime();
+				long last = next;
+				boolean first = true;
 				while (refresh) {
-					frame.getContentPane().revalidate();
-					frame.getContentPane().repaint();
-					try {
-						sleep(SLEEP_MILLIS);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
+					long start = System.nanoTime();
+					Runnable task = updateTask;
+					if (task != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+					long updateNanos = System.nanoTime() - start;
+					layoutNanos = 0;
+					boolean rendered = renderFrame();
+					long period = framePeriod();
+					next += period;
+					long now = System.nanoTime();
+					//the first frame has no previous one to be timed from
+					if (!first) {
+						metrics.frame(start - last, updateNanos + layoutNanos, period, !rendered, now - next > 0);
+					}
+					first = false;
+					last = start;
+					if (now - next > period) {
+						next = now;
+					}
+					while ((now = System.nanoTime()) - next < 0) {
+						LockSupport.parkNanos(next - now);
 					}
 				}
 			}
@@ -143,12 +309,393 @@ public class Display {
 		t.start();
 	}
 	
+	/*
+	 * Renders one frame, either by asking Swing to repaint, or with active rendering
+	 * by painting the content pane into the back buffer on the event thread and showing it.
+	 * Returns false if the frame was skipped as nothing was marked dirty.
+	 */
+	private boolean renderFrame() {
+		if (dirtyTracking) {
+			FrameGraph graph = frameGraph;
+			if (graph != null) {
+				markDirty(graph);
+			}
+		}
+		final Rectangle region = dirtyTracking ? takeDirtyRegion() : null;
+		if (dirtyTracking && region == null) {
+			return false;
+		}
+		if (frame == null) {
+			onEventThread(new Runnable() {
+				@Override
+				public void run() {
+					paintOffscreen(region);
+				}
+			});
+			return true;
+		}
+		if (!activeRendering) {
+			content.revalidate();
+			if (region == null) {
+				content.repaint();
+			} else {
+				content.repaint(region.x, region.y, region.width, region.height);
+			}
+			if (vsync) {
+				Toolkit.getDefaultToolkit().sync();
+			}
+			return true;
+		}
+		onEventThread(new Runnable() {
+			@Override
+			public void run() {
+				paintActive(region);
+			}
+		});
+		return true;
+	}
+	
+	/*
+	 * Runs task on the event thread and waits for it.
+	 */
+	private static void onEventThread(Runnable task) {
+		if (SwingUtilities.isEventDispatchThread()) {
+			task.run();
+			return;
+		}
+		try {
+			SwingUtilities.invokeAndWait(task);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (InvocationTargetException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Paints the content into the frame buffer, only region if not null.
+	 * Runs on the event thread. print() is used as the panels have no window,
+	 * so Swing cannot buffer them itself.
+	 */
+	private void paintOffscreen(Rectangle region) {
+		long start = System.nanoTime();
+		content.validate();
+		layoutNanos = System.nanoTime() - start;
+		Graphics2D g = frameBuffer.createGraphics();
+		try {
+			if (region != null) {
+				g.clipRect(region.x, region.y, region.width, region.height);
+			}
+			content.print(g);
+		} finally {
+			g.dispose();
+		}
+	}
+	
+	/*
+	 * Paints the content pane into the back buffer and shows it, repeating if the
+	 * buffer's video memory was lost meanwhile. Runs on the event thread.
+	 * Only region is painted if not null and the back buffer keeps its contents
+	 * between frames, otherwise everything is.
+	 */
+	private void paintActive(Rectangle region) {
+		if (!frame.isDisplayable()) {
+			return;
+		}
+		if (bufferStrategy == null) {
+			createBufferStrategy();
+			region = null;
+		}
+		BufferCapabilities capabilities = bufferStrategy.getCapabilities();
+		if (capabilities.isPageFlipping() && capabilities.getFlipContents() != BufferCapabilities.FlipContents.COPIED) {
+			region = null;
+		}
+		long start = System.nanoTime();
+		content.validate();
+		layoutNanos = System.nanoTime() - start;
+		Point origin = SwingUtilities.convertPoint(content, 0, 0, frame);
+		do {
+			boolean restored;
+			do {
+				Graphics g = bufferStrategy.getDrawGraphics();
+				try {
+					g.translate(origin.x, origin.y);
+					if (region != null) {
+						g.clipRect(region.x, region.y, region.width, region.height);
+					}
+					content.paint(g);
+				} finally {
+					g.dispose();
+				}
+				restored = bufferStrategy.contentsRestored();
+				if (restored) {
+					region = null;
+				}
+			} while (restored);
+			bufferStrategy.show();
+		} while (bufferStrategy.contentsLost());
+		if (vsync) {
+			Toolkit.getDefaultToolkit().sync();
+		}
+	}
+	
+	/*
+	 * Makes two buffers in video memory, flipped if vsync is on and the screen allows,
+	 * as flips are then usually made during the vertical blank.
+	 */
+	private void createBufferStrategy() {
+		if (vsync) {
+			try {
+				frame.createBufferStrategy(2, new BufferCapabilities(new ImageCapabilities(true),
+						new ImageCapabilities(true), BufferCapabilities.FlipContents.UNDEFINED));
+			} catch (AWTException e) {
+				frame.createBufferStrategy(2);
+			}
+		} else {
+			frame.createBufferStrategy(2);
+		}
+		bufferStrategy = frame.getBufferStrategy();
+	}
+	
+	/*
+	 * Turns Swing's back buffer for this frame on or off. It is off while rendering
+	 * actively, as the strategy already is one. Other windows keep theirs.
+	 */
+	private void setSwingBuffered(boolean buffered) {
+		content.setDoubleBuffered(buffered);
+		if (frame != null) {
+			frame.getRootPane().setDoubleBuffered(buffered);
+		}
+	}
+	
+	/*
+	 * Returns nanoseconds between frames. With vsync the refresh rate is rounded to
+	 * a whole fraction of the screen's, i.e. 60, 30 or 20 on a 60 Hz screen,
+	 * so every frame lines up with the same point of the screen's refresh.
+	 */
+	private long framePeriod() {
+		double rate = refreshRate;
+		if (vsync) {
+			int screenRate = screenRefreshRate();
+			if (screenRate > 0) {
+				rate = (double) screenRate / Math.max(1, Math.round(screenRate / rate));
+			}
+		}
+		return (long) (1e9 / rate);
+	}
+	
+	private int screenRefreshRate() {
+		GraphicsConfiguration config = frame == null ? null : frame.getGraphicsConfiguration();
+		if (config == null) {
+			return DisplayMode.REFRESH_RATE_UNKNOWN;
+		}
+		return config.getDevice().getDisplayMode().getRefreshRate();
+	}
+	
+	/*
+	 * Sets the times per second the frame refreshes, 60 by default.
+	 */
+	public void setRefreshRate(double rate) {
+		if (!(rate > 0)) {
+			throw new IllegalArgumentException("Refresh rate must be positive: " + rate);
+		}
+		refreshRate = rate;
+	}
+	
+	public double getRefreshRate() {
+		return refreshRate;
+	}
+	
+	/*
+	 * Sets whether the refresh thread paints each frame itself into a BufferStrategy
+	 * rather than asking Swing to repaint. Active rendering paints every frame in full
+	 * at the set rate, and is meant for panels that change every frame, like a game world.
+	 * Turning it on disables Swing's double buffering for this frame, as the strategy replaces it.
+	 */
+	public void setActiveRendering(final boolean active) {
+		activeRendering = active;
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				setSwingBuffered(!active);
+				if (!active) {
+					content.repaint();
+				}
+			}
+		});
+	}
+	
+	public boolean isActiveRendering() {
+		return activeRendering;
+	}
+	
+	/*
+	 * Sets whether frames are timed to the screen, see framePeriod(). With active
+	 * rendering, buffers made afterwards are flipped where the screen allows,
+	 * which is usually synchronized with its refresh. Best set before start().
+	 */
+	public void setVsync(boolean vsync) {
+		this.vsync = vsync;
+	}
+	
+	public boolean isVsync() {
+		return vsync;
+	}
+	
+	/*
+	 * Returns whether the display renders into an image rather than a window.
+	 */
+	public boolean isHeadless() {
+		return frame == null;
+	}
+	
+	/*
+	 * Renders a frame into the frame buffer right away and returns the buffer,
+	 * i.e. to render thumbnails or time rendering without the refresh thread.
+	 * Frames are rendered in full, regardless of dirty tracking. Headless only.
+	 */
+	public BufferedImage render() {
+		checkHeadless();
+		onEventThread(new Runnable() {
+			@Override
+			public void run() {
+				paintOffscreen(null);
+			}
+		});
+		return frameBuffer;
+	}
+	
+	/*
+	 * Returns the image frames are rendered into, which the refresh thread keeps
+	 * drawing into while started. Headless only.
+	 */
+	public BufferedImage getFrameBuffer() {
+		checkHeadless();
+		return frameBuffer;
+	}
+	
+	/*
+	 * Returns a copy of the last frame rendered, taken between frames. Headless only.
+	 */
+	public BufferedImage captureFrame() {
+		checkHeadless();
+		final BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		onEventThread(new Runnable() {
+			@Override
+			public void run() {
+				Graphics2D g = copy.createGraphics();
+				g.drawImage(frameBuffer, 0, 0, null);
+				g.dispose();
+			}
+		});
+		return copy;
+	}
+	
+	private void checkHeadless() {
+		if (frame != null) {
+			throw new IllegalStateException("Display is not headless");
+		}
+	}
+	
+	/*
+	 * Returns the frame timings of this display.
+	 */
+	public FrameMetrics getFrameMetrics() {
+		return metrics;
+	}
+	
+	/*
+	 * Sets a task the refresh thread runs at the start of every frame, i.e. the
+	 * game's update step, or null for none. Its time is recorded as update time.
+	 */
+	public void setUpdateTask(Runnable task) {
+		updateTask = task;
+	}
+	
+	/*
+	 * Shows or hides a FrameGraph of the frame metrics in the top left corner,
+	 * above every overlay. With dirty tracking, the graph is repainted every frame.
+	 */
+	public void setFrameGraphVisible(boolean visible) {
+		if (visible && frameGraph == null) {
+			frameGraph = new FrameGraph(metrics);
+			frameGraph.setLocation(8, 8);
+			overlay.add(frameGraph, JLayeredPane.DRAG_LAYER);
+		} else if (!visible && frameGraph != null) {
+			overlay.remove(frameGraph);
+			frameGraph = null;
+		}
+		markAllDirty();
+	}
+	
+	/*
+	 * Sets whether only regions marked with markDirty() are repainted. Panels must
+	 * then mark what they change, and frames where nothing was marked are skipped,
+	 * which saves the cost of repainting idle screens. Adding, removing and switching
+	 * panels and resizing the frame mark everything.
+	 */
+	public void setDirtyTracking(boolean tracking) {
+		dirtyTracking = tracking;
+		markAllDirty();
+	}
+	
+	public boolean isDirtyTracking() {
+		return dirtyTracking;
+	}
+	
+	/*
+	 * Marks a rectangle of panel as changed, in the panel's coordinates.
+	 * panel is the main panel, an overlay or the menu. May be called from any thread.
+	 */
+	public void markDirty(JPanel panel, int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		Rectangle region = SwingUtilities.convertRectangle(panel, new Rectangle(x, y, width, height), content);
+		synchronized (dirtyLock) {
+			if (dirtyRegion == null) {
+				dirtyRegion = region;
+			} else {
+				dirtyRegion.add(region);
+			}
+		}
+	}
+	
+	/*
+	 * Marks all of panel as changed.
+	 */
+	public void markDirty(JPanel panel) {
+		markDirty(panel, 0, 0, panel.getWidth(), panel.getHeight());
+	}
+	
+	/*
+	 * Marks the whole display as changed.
+	 */
+	public void markAllDirty() {
+		synchronized (dirtyLock) {
+			dirtyRegion = new Rectangle(0, 0, Math.max(content.getWidth(), width), Math.max(content.getHeight(), height));
+		}
+	}
+	
+	/*
+	 * Returns the region marked since the last call, and clears it.
+	 */
+	private Rectangle takeDirtyRegion() {
+		synchronized (dirtyLock) {
+			Rectangle region = dirtyRegion;
+			dirtyRegion = null;
+			return region;
+		}
+	}
+	
 	/*
 	 * Stops refresh and makes panel invisible
 	 */
 	public void stop() {
 		refresh = false;
-		frame.setVisible(false);	
+		if (frame != null) {
+			frame.setVisible(false);
+		}
 	}
 	
 	/*
@@ -156,8 +703,10 @@ public class Display {
 	 */
 	public void kill() {
 		refresh = false;
-		frame.setVisible(false);
-		frame.setEnabled(false);
+		if (frame != null) {
+			frame.setVisible(false);
+			frame.setEnabled(false);
+		}
 	}
 	
 	/*
@@ -175,7 +724,7 @@ public class Display {
 	 * Maximizes frame
 	 */
 	public void maximize() {
-		if (!isMaximized()) {
+		if (frame != null && !isMaximized()) {
 			frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
 		}
 	}
@@ -184,7 +733,7 @@ public class Display {
 	 * minimizes frame
 	 */
 	public void minimize() {
-		if (isMaximized()) {
+		if (frame != null && isMaximized()) {
 			frame.setExtendedState(JFrame.NORMAL);
 			frame.setBounds(0, 0, width + 16, height + 39);
 		}
@@ -204,6 +753,52 @@ public class Display {
 		overlayPanels.push(panel);
 		overlay.add(panel, overlayPanels.size());
 		overlay.moveToFront(panel);
+		markAllDirty();
+	}
+	
+	/*
+	 * adds a panel that rarely changes to the top of the overlay. It is painted into
+	 * a cached image, which is drawn on every frame instead until invalidateOverlay()
+	 * is called for it. Static overlays added one after another share one image.
+	 */
+	public void addStaticOverlay(JPanel panel) {
+		StaticLayer layer = overlayPanels.isEmpty() ? null : staticLayers.get(overlayPanels.peek());
+		overlayPanels.push(panel);
+		if (layer == null) {
+			layer = new StaticLayer();
+			layer.setBounds(0, 0, width, height);
+			overlay.add(layer, overlayPanels.size());
+			overlay.moveToFront(layer);
+		}
+		layer.add(panel, 0);
+		staticLayers.put(panel, layer);
+		markAllDirty();
+	}
+	
+	/*
+	 * Has a static overlay painted again on the next frame, after it changed.
+	 * Does nothing for other panels.
+	 */
+	public void invalidateOverlay(JPanel panel) {
+		StaticLayer layer = staticLayers.get(panel);
+		if (layer != null) {
+			layer.invalidateCache();
+			markDirty(layer, panel.getX(), panel.getY(), panel.getWidth(), panel.getHeight());
+		}
+	}
+	
+	/*
+	 * Has every static overlay painted again on the next frame.
+	 */
+	public void invalidateStaticOverlays() {
+		for (StaticLayer layer : new HashSet<StaticLayer>(staticLayers.values())) {
+			layer.invalidateCache();
+		}
+		markAllDirty();
+	}
+	
+	public boolean isStaticOverlay(JPanel panel) {
+		return staticLayers.containsKey(panel);
 	}
 	
 	/*
@@ -212,7 +807,16 @@ public class Display {
 	public void removeTopOverlay() {
 		if (overlayPanels.size() > 1) {
 			JPanel trash = overlayPanels.pop();
-			overlay.remove(trash);
+			StaticLayer layer = staticLayers.remove(trash);
+			if (layer == null) {
+				overlay.remove(trash);
+			} else {
+				layer.remove(trash);
+				if (layer.getComponentCount() == 0) {
+					overlay.remove(layer);
+				}
+			}
+			markAllDirty();
 		} else {
 			System.out.println("No More overlays left in display.");
 		}
@@ -230,6 +834,7 @@ public class Display {
 		overlay.add(panel);
 		mainPanel = panel;
 		restackPanels();
+		markAllDirty();
 	}
 	
 	/*
@@ -240,6 +845,7 @@ public class Display {
 			inMenuMode = false;
 			overlay.setVisible(true);
 		}
+		markAllDirty();
 	}
 	/*
 	 * switches to menu from main panel
@@ -250,7 +856,8 @@ public class Display {
 			inMenuMode = true;
 			overlay.setVisible(false);
 		}
-		frame.getContentPane().add(menu);
+		content.add(menu);
+		markAllDirty();
 	}
 	
 	/*
@@ -258,22 +865,30 @@ public class Display {
 	 */
 	public void changeMenu(JPanel nextMenu) {
 		if (inMenuMode) {
-			frame.getContentPane().remove(menu);
-			frame.getContentPane().add(nextMenu);
+			content.remove(menu);
+			content.add(nextMenu);
 		}
 		menu = nextMenu;
+		markAllDirty();
 	}
 	
 	/*
 	 * Restacks the panels so that main panel is on the bottom, keeps overlay order.
 	 */
 	private void restackPanels() {
+		List<JPanel> layers = new ArrayList<JPanel>();
 		for (JPanel p : overlayPanels) {
+			JPanel layer = staticLayers.containsKey(p) ? staticLayers.get(p) : p;
+			if (!layers.contains(layer)) {
+				layers.add(layer);
+			}
+		}
+		for (JPanel p : layers) {
 			overlay.remove(p);
 		}
 		overlay.remove(mainPanel);
 		
-		for (JPanel p : overlayPanels) {
+		for (JPanel p : layers) {
 			overlay.add(p);
 		}
 		overlay.add(mainPanel);
@@ -295,6 +910,7 @@ public class Display {
 	 * @see java.lang.Object#toString()
 	 */
 	public String toString() {
-		return width + "wide, " + height + "high : " + "in menu mode: " + inMenuMode + " : Frame info: " + frame.toString();
+		return width + "wide, " + height + "high : " + "in menu mode: " + inMenuMode + " : Frame info: "
+				+ (frame == null ? "headless" : frame.toString());
 	}
 }
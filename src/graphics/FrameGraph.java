@@ -0,0 +1,61 @@
+package graphics;
+
+import java.awt.Color;
+import java.awt.Graphics;
+
+import javax.swing.JPanel;
+
+/*
+ * Small see-through panel graphing the last frames of a FrameMetrics, one bar
+ * per frame, red where a frame took half as long again as the period aimed for.
+ * Shown on a Display with setFrameGraphVisible(true), or added like any panel.
+ */
+public class FrameGraph extends JPanel {
+	private static final long serialVersionUID = 1L;
+	
+	/*
+	 * frame time at the top of the graph.
+	 */
+	private static final double SCALE_MILLIS = 50;
+	
+	private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+	private static final Color ON_TIME = new Color(80, 220, 80);
+	private static final Color LATE = new Color(230, 60, 60);
+	
+	private final FrameMetrics metrics;
+	
+	public FrameGraph(FrameMetrics metrics) {
+		this.metrics = metrics;
+		setOpaque(false);
+		setSize(FrameMetrics.HISTORY + 8, 90);
+	}
+	
+	@Override
+	protected void paintComponent(Graphics g) {
+		int w = getWidth();
+		int h = getHeight();
+		g.setColor(BACKGROUND);
+		g.fillRect(0, 0, w, h);
+		
+		int top = 16;
+		int graphHeight = h - top - 4;
+		long[] frames = metrics.getRecentFrameNanos();
+		long target = metrics.getTargetNanos();
+		int x = w - 4 - frames.length;
+		for (long nanos : frames) {
+			int bar = (int) Math.min(graphHeight, nanos / 1e6 / SCALE_MILLIS * graphHeight);
+			g.setColor(target > 0 && nanos > target * 3 / 2 ? LATE : ON_TIME);
+			g.drawLine(x, h - 4, x, h - 4 - bar);
+			x++;
+		}
+		if (target > 0) {
+			int y = h - 4 - (int) Math.min(graphHeight, target / 1e6 / SCALE_MILLIS * graphHeight);
+			g.setColor(Color.WHITE);
+			g.drawLine(4, y, w - 4, y);
+		}
+		
+		g.setColor(Color.WHITE);
+		g.drawString(String.format("%.1f fps  p99 %.1f ms  missed %d", metrics.getFps(), metrics.getP99FrameMillis(),
+				metrics.getMissedDeadlines()), 4, 12);
+	}
+}
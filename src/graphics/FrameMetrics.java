@@ -0,0 +1,263 @@
+package graphics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Frame timings of a Display, from Display.getFrameMetrics().
+ * 
+ * Frame time is the time from the start of one frame to the start of the next.
+ * Update time is spent in the display's update task and laying out panels,
+ * paint time in painting them. A frame misses its deadline when it is not done
+ * before the next one is due. Frames skipped by dirty tracking are counted,
+ * but do not paint.
+ * 
+ * Frame times are kept in a histogram of quarter millisecond buckets for
+ * percentiles, and the last HISTORY of them for the moving average and graph.
+ * Read with the getters, or through JMX after register().
+ */
+public class FrameMetrics implements FrameMetricsMBean {
+	/*
+	 * number of recent frames kept for the moving average and the graph.
+	 */
+	public static final int HISTORY = 240;
+	
+	/*
+	 * histogram bucket i holds frame times below (i + 1) quarter milliseconds,
+	 * the last holds everything longer.
+	 */
+	static final long BUCKET_NANOS = 250000;
+	static final int BUCKETS = 400;
+	
+	private final long[] recent = new long[HISTORY];
+	private int recentNext;
+	private int recentCount;
+	private final long[] histogram = new long[BUCKETS];
+	
+	private long frames;
+	private long skipped;
+	private long missed;
+	private long totalFrameNanos;
+	private long maxFrameNanos;
+	private long totalUpdateNanos;
+	private long maxUpdateNanos;
+	private long paints;
+	private long totalPaintNanos;
+	private long maxPaintNanos;
+	private long targetNanos;
+	
+	private ObjectName registeredAs;
+	
+	/*
+	 * Records a frame that took frameNanos since the previous one started,
+	 * of which updateNanos updating. targetNanos is the frame period aimed for.
+	 */
+	synchronized void frame(long frameNanos, long updateNanos, long targetNanos, boolean skipped, boolean missed) {
+		frames++;
+		if (skipped) {
+			this.skipped++;
+		}
+		if (missed) {
+			this.missed++;
+		}
+		this.targetNanos = targetNanos;
+		totalFrameNanos += frameNanos;
+		maxFrameNanos = Math.max(maxFrameNanos, frameNanos);
+		totalUpdateNanos += updateNanos;
+		maxUpdateNanos = Math.max(maxUpdateNanos, updateNanos);
+		histogram[(int) Math.min(frameNanos / BUCKET_NANOS, BUCKETS - 1)]++;
+		recent[recentNext] = frameNanos;
+		recentNext = (recentNext + 1) % HISTORY;
+		recentCount = Math.min(recentCount + 1, HISTORY);
+	}
+	
+	/*
+	 * Records painting the panels once.
+	 */
+	synchronized void paint(long nanos) {
+		paints++;
+		totalPaintNanos += nanos;
+		maxPaintNanos = Math.max(maxPaintNanos, nanos);
+	}
+	
+	@Override
+	public synchronized long getFrameCount() {
+		return frames;
+	}
+	
+	/*
+	 * Returns the number of frames skipped as nothing was marked dirty.
+	 */
+	@Override
+	public synchronized long getSkippedFrames() {
+		return skipped;
+	}
+	
+	@Override
+	public synchronized long getMissedDeadlines() {
+		return missed;
+	}
+	
+	/*
+	 * Returns frames per second averaged over the last HISTORY frames.
+	 */
+	@Override
+	public synchronized double getFps() {
+		long total = 0;
+		for (int i = 0; i < recentCount; i++) {
+			total += recent[i];
+		}
+		return total == 0 ? 0 : recentCount * 1e9 / total;
+	}
+	
+	@Override
+	public synchronized double getMeanFrameMillis() {
+		return frames == 0 ? 0 : totalFrameNanos / 1e6 / frames;
+	}
+	
+	@Override
+	public synchronized double getMaxFrameMillis() {
+		return maxFrameNanos / 1e6;
+	}
+	
+	/*
+	 * Returns the frame time percentile of all frames, to the quarter millisecond,
+	 * i.e. 0.99 for the time 99% of frames took at most.
+	 */
+	public synchronized double getFramePercentileMillis(double percentile) {
+		if (frames == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * frames);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS - 1; b++) {
+			seen += histogram[b];
+			if (seen >= rank) {
+				return Math.min((b + 1) * BUCKET_NANOS, maxFrameNanos) / 1e6;
+			}
+		}
+		return maxFrameNanos / 1e6;
+	}
+	
+	@Override
+	public double getP50FrameMillis() {
+		return getFramePercentileMillis(0.50);
+	}
+	
+	@Override
+	public double getP95FrameMillis() {
+		return getFramePercentileMillis(0.95);
+	}
+	
+	@Override
+	public double getP99FrameMillis() {
+		return getFramePercentileMillis(0.99);
+	}
+	
+	@Override
+	public synchronized double getMeanUpdateMillis() {
+		return frames == 0 ? 0 : totalUpdateNanos / 1e6 / frames;
+	}
+	
+	@Override
+	public synchronized double getMaxUpdateMillis() {
+		return maxUpdateNanos / 1e6;
+	}
+	
+	@Override
+	public synchronized double getMeanPaintMillis() {
+		return paints == 0 ? 0 : totalPaintNanos / 1e6 / paints;
+	}
+	
+	@Override
+	public synchronized double getMaxPaintMillis() {
+		return maxPaintNanos / 1e6;
+	}
+	
+	/*
+	 * Returns the frame period aimed for, in nanoseconds.
+	 */
+	public synchronized long getTargetNanos() {
+		return targetNanos;
+	}
+	
+	/*
+	 * Returns the times of the last HISTORY frames or fewer, oldest first.
+	 */
+	public synchronized long[] getRecentFrameNanos() {
+		long[] times = new long[recentCount];
+		int start = recentCount < HISTORY ? 0 : recentNext;
+		for (int i = 0; i < recentCount; i++) {
+			times[i] = recent[(start + i) % HISTORY];
+		}
+		return times;
+	}
+	
+	/*
+	 * Sets every count back to zero.
+	 */
+	@Override
+	public synchronized void reset() {
+		frames = 0;
+		skipped = 0;
+		missed = 0;
+		totalFrameNanos = 0;
+		maxFrameNanos = 0;
+		totalUpdateNanos = 0;
+		maxUpdateNanos = 0;
+		paints = 0;
+		totalPaintNanos = 0;
+		maxPaintNanos = 0;
+		recentNext = 0;
+		recentCount = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			histogram[b] = 0;
+		}
+	}
+	
+	/*
+	 * Registers the metrics with the platform MBean server as
+	 * graphics:type=FrameMetrics,name=<name>. Returns false if that failed,
+	 * i.e. the name is taken.
+	 */
+	public synchronized boolean register(String name) {
+		unregister();
+		try {
+			ObjectName objectName = new ObjectName("graphics:type=FrameMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredAs = objectName;
+			return true;
+		} catch (JMException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/*
+	 * Removes the metrics from the MBean server, if registered.
+	 */
+	public synchronized void unregister() {
+		if (registeredAs == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(registeredAs)) {
+				server.unregisterMBean(registeredAs);
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		registeredAs = null;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return String.format("%.1f fps, frame mean %.2f ms p99 %.2f ms max %.2f ms, update %.2f ms, paint %.2f ms, "
+				+ "%d frames, %d skipped, %d missed", getFps(), getMeanFrameMillis(), getP99FrameMillis(),
+				getMaxFrameMillis(), getMeanUpdateMillis(), getMeanPaintMillis(), frames, skipped, missed);
+	}
+}
@@ -0,0 +1,36 @@
+package graphics;
+
+/*
+ * What FrameMetrics shows through JMX, i.e. in jconsole or VisualVM.
+ * Times are in milliseconds.
+ */
+public interface FrameMetricsMBean {
+	
+	long getFrameCount();
+	
+	long getSkippedFrames();
+	
+	long getMissedDeadlines();
+	
+	double getFps();
+	
+	double getMeanFrameMillis();
+	
+	double getMaxFrameMillis();
+	
+	double getP50FrameMillis();
+	
+	double getP95FrameMillis();
+	
+	double getP99FrameMillis();
+	
+	double getMeanUpdateMillis();
+	
+	double getMaxUpdateMillis();
+	
+	double getMeanPaintMillis();
+	
+	double getMaxPaintMillis();
+	
+	void reset();
+}
@@ -0,0 +1,129 @@
+package graphics;
+
+import java.awt.AlphaComposite;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+import java.awt.event.ContainerEvent;
+import java.awt.event.ContainerListener;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JPanel;
+
+/*
+ * Holds one or more static overlays of a Display, added with addStaticOverlay.
+ * Its panels are painted once into a cached image, which is drawn in their place
+ * on every frame until invalidateCache() is called. The panels stay in the
+ * component tree, so they still get input and layout like any other overlay.
+ * 
+ * The image covers only the area of the panels, and is made compatible with the
+ * screen so Java2D can keep it in video memory. Adding, removing, moving, resizing,
+ * showing or hiding a panel invalidates it, changes to what a panel paints do not.
+ */
+class StaticLayer extends JPanel {
+	private static final long serialVersionUID = 1L;
+	
+	private BufferedImage cache;
+	private Rectangle cacheBounds;
+	private boolean valid;
+	
+	StaticLayer() {
+		super(null);
+		setOpaque(false);
+		final ComponentListener moved = new ComponentListener() {
+			@Override
+			public void componentResized(ComponentEvent e) {
+				invalidateCache();
+			}
+			
+			@Override
+			public void componentMoved(ComponentEvent e) {
+				invalidateCache();
+			}
+			
+			@Override
+			public void componentShown(ComponentEvent e) {
+				invalidateCache();
+			}
+			
+			@Override
+			public void componentHidden(ComponentEvent e) {
+				invalidateCache();
+			}
+		};
+		addContainerListener(new ContainerListener() {
+			@Override
+			public void componentAdded(ContainerEvent e) {
+				e.getChild().addComponentListener(moved);
+				invalidateCache();
+			}
+			
+			@Override
+			public void componentRemoved(ContainerEvent e) {
+				e.getChild().removeComponentListener(moved);
+				invalidateCache();
+			}
+		});
+		addComponentListener(moved);
+	}
+	
+	/*
+	 * Makes the next paint draw the panels into the cache again.
+	 */
+	void invalidateCache() {
+		valid = false;
+		repaint();
+	}
+	
+	@Override
+	public void paint(Graphics g) {
+		if (!valid) {
+			rebuild();
+		}
+		if (cache != null) {
+			g.drawImage(cache, cacheBounds.x, cacheBounds.y, null);
+		}
+	}
+	
+	/*
+	 * Paints the panels into the cache, over the smallest area holding them.
+	 */
+	private void rebuild() {
+		valid = true;
+		Rectangle area = null;
+		for (Component c : getComponents()) {
+			if (c.isVisible()) {
+				area = area == null ? c.getBounds() : area.union(c.getBounds());
+			}
+		}
+		if (area != null) {
+			area = area.intersection(new Rectangle(0, 0, getWidth(), getHeight()));
+		}
+		if (area == null || area.isEmpty()) {
+			cache = null;
+			return;
+		}
+		if (cache == null || cache.getWidth() != area.width || cache.getHeight() != area.height) {
+			GraphicsConfiguration config = getGraphicsConfiguration();
+			cache = config == null ? new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_ARGB_PRE)
+					: config.createCompatibleImage(area.width, area.height, Transparency.TRANSLUCENT);
+		}
+		cacheBounds = area;
+		Graphics2D g = cache.createGraphics();
+		try {
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, area.width, area.height);
+			g.setComposite(AlphaComposite.SrcOver);
+			g.translate(-area.x, -area.y);
+			g.setClip(area.x, area.y, area.width, area.height);
+			paintChildren(g);
+		} finally {
+			g.dispose();
+		}
+	}
+}